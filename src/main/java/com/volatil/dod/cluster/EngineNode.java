@@ -0,0 +1,298 @@
+package com.volatil.dod.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.volatil.dod.game.MapCatalog;
+import com.volatil.dod.game.MapTemplate;
+import com.volatil.dod.game.RemoteGameLogic;
+import com.volatil.dod.search.PlanningBudget;
+import com.volatil.dod.session.SessionRegistry;
+
+/**
+ * An engine process hosting some of the sessions of a cluster, served to
+ * {@link SessionRouter routers} over TCP. Each request is an operation code
+ * and its arguments, written with {@link DataOutputStream}, answered in turn on
+ * the same connection. Games move between nodes in the form written by
+ * {@link RemoteGameLogic#writeState}.
+ */
+public class EngineNode implements AutoCloseable {
+  /** Starts a game: the session's identifier; answered with whether it started. */
+  static final byte OPEN = 1;
+  /** Plays a turn: identifier and command; answered with whether the session exists, then the response. */
+  static final byte EXECUTE = 2;
+  /** Moves a game out: identifier; answered with the saved game's length, or -1, then the saved game. */
+  static final byte EXPORT = 3;
+  /** Moves a game in: identifier, length and saved game; answered with whether it was taken. */
+  static final byte IMPORT = 4;
+  /** Lists the sessions: answered with their number, then each identifier. */
+  static final byte LIST = 5;
+
+  /** The longest saved game moved between nodes, in bytes. */
+  static final int MAX_GAME_BYTES = 1 << 20;
+
+  /** Estimated memory games may use before being passivated, when run on its own. */
+  private static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+
+  /** How long games may go unused before being passivated, when run on its own. */
+  private static final long DEFAULT_IDLE_MILLIS = 60_000;
+
+  /** The node's sessions. */
+  private final SessionRegistry registry;
+
+  /** Maps games are played on. */
+  private final MapCatalog catalog;
+
+  /** The work bots may do planning each turn. */
+  private final PlanningBudget botBudget;
+
+  /** Accepts connections from routers. */
+  private final ServerSocket server;
+
+  /** Threads serving connections, one per connection. */
+  private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "dod-node");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * Default constructor, listening on the loopback address.
+   *
+   * @param port      The port to listen on, or 0 for any free port.
+   * @param registry  The node's sessions.
+   * @param catalog   Maps games are played on.
+   * @param botBudget The work bots may do planning each turn.
+   * @throws IOException If the port cannot be listened on.
+   */
+  public EngineNode(int port, SessionRegistry registry, MapCatalog catalog, PlanningBudget botBudget)
+      throws IOException {
+    this.registry = registry;
+    this.catalog = catalog;
+    this.botBudget = botBudget;
+    this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+  }
+
+  /**
+   * Runs a node on its own, until it is killed.
+   *
+   * @param args The port to listen on, then optionally the folder to passivate
+   *             games to.
+   * @throws IOException If the node cannot start.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: EngineNode <port> [session directory]");
+      return;
+    }
+    Path directory = args.length > 1 ? Paths.get(args[1]) : Files.createTempDirectory("dod-sessions");
+    MapCatalog catalog = MapCatalog.shared();
+    SessionRegistry registry = new SessionRegistry(directory, DEFAULT_MEMORY_BUDGET, DEFAULT_IDLE_MILLIS, catalog,
+        PlanningBudget.UNBOUNDED);
+    try (EngineNode node = new EngineNode(Integer.parseInt(args[0]), registry, catalog, PlanningBudget.UNBOUNDED)) {
+      System.out.println("Engine node listening on port " + node.getPort());
+      node.run();
+    }
+  }
+
+  /** Serves connections on a background thread. */
+  public void start() {
+    Thread t = new Thread(this::run, "dod-node-accept");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /** Serves connections on this thread until the node is closed. */
+  public void run() {
+    while (!server.isClosed()) {
+      try {
+        Socket socket = server.accept();
+        connections.execute(() -> serve(socket));
+      } catch (IOException e) {
+        if (!server.isClosed())
+          System.err.println("Failed to accept connection: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Answers a router's requests until it hangs up.
+   *
+   * @param socket The connection.
+   */
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+      s.setTcpNoDelay(true);
+      while (true) {
+        byte op;
+        try {
+          op = in.readByte();
+        } catch (EOFException e) {
+          return;
+        }
+        handle(op, in, out);
+        out.flush();
+      }
+    } catch (SocketException e) {
+      // The router hung up.
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Connection failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @param op  The operation asked for.
+   * @param in  The request's arguments.
+   * @param out Where to write the answer.
+   * @throws IOException If the connection fails or the request is malformed.
+   */
+  private void handle(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+    switch (op) {
+      case OPEN:
+        out.writeBoolean(open(in.readUTF()));
+        break;
+      case EXECUTE: {
+        String response = registry.execute(in.readUTF(), in.readUTF());
+        out.writeBoolean(response != null);
+        if (response != null)
+          out.writeUTF(response);
+        break;
+      }
+      case EXPORT: {
+        byte[] game = export(in.readUTF());
+        out.writeInt(game == null ? -1 : game.length);
+        if (game != null)
+          out.write(game);
+        break;
+      }
+      case IMPORT: {
+        String id = in.readUTF();
+        int length = in.readInt();
+        // The rest of the request cannot be skipped safely, so the connection
+        // is dropped.
+        if (length < 0 || length > MAX_GAME_BYTES)
+          throw new IOException("Refused a saved game of " + length + " bytes");
+        byte[] game = new byte[length];
+        in.readFully(game);
+        out.writeBoolean(load(id, game));
+        break;
+      }
+      case LIST: {
+        List<String> ids = registry.getSessionIds();
+        out.writeInt(ids.size());
+        for (String id : ids) {
+          out.writeUTF(id);
+        }
+        break;
+      }
+      default:
+        throw new IOException("Unknown operation " + op);
+    }
+  }
+
+  /**
+   * @param id The session's identifier.
+   * @return Whether the game was started, there being no session with the
+   *         identifier already.
+   */
+  private boolean open(String id) {
+    try {
+      registry.open(id, new RemoteGameLogic(catalog, botBudget));
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Takes a game off this node, saving it to be moved to another. The game
+   * stays if it cannot be saved, or is too large to move.
+   *
+   * @param id The session's identifier.
+   * @return The saved game, or null if there is no such session.
+   * @throws IOException If the game cannot be saved.
+   */
+  private byte[] export(String id) throws IOException {
+    RemoteGameLogic game;
+    try {
+      game = registry.detach(id);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    if (game == null)
+      return null;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      game.writeState(out);
+      if (bytes.size() > MAX_GAME_BYTES)
+        throw new IOException("Saved game is too large to move");
+    } catch (IOException | RuntimeException e) {
+      registry.open(id, game);
+      throw e;
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Takes on a game moved from another node.
+   *
+   * @param id   The session's identifier.
+   * @param game The saved game.
+   * @return Whether the game was taken, its map being known and there being no
+   *         session with the identifier already.
+   */
+  private boolean load(String id, byte[] game) {
+    try {
+      String mapName = RemoteGameLogic.readMapName(new DataInputStream(new ByteArrayInputStream(game)));
+      MapTemplate template = catalog.find(mapName);
+      if (template == null)
+        return false;
+      registry.open(id, new RemoteGameLogic(template, new DataInputStream(new ByteArrayInputStream(game)), botBudget));
+      return true;
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println("Failed to take on session " + id + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * @return The port the node listens on.
+   */
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * @return The node's sessions.
+   */
+  public SessionRegistry getRegistry() {
+    return registry;
+  }
+
+  /** Stops serving, closing every session. */
+  @Override
+  public void close() throws IOException {
+    server.close();
+    connections.shutdownNow();
+    registry.close();
+  }
+}
@@ -0,0 +1,104 @@
+package com.volatil.dod.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring, assigning keys to nodes so that adding or removing a
+ * node only moves the keys of the arcs it takes over or gives up. Each node is
+ * placed at many points around the ring, so that the keys are spread evenly.
+ * A key belongs to the first node found clockwise from the key's hash.
+ *
+ * @param <N> The type of the nodes, which must have a stable {@code toString}.
+ */
+public class HashRing<N> {
+  /** Points placed on the ring per node when none is given. */
+  public static final int DEFAULT_REPLICAS = 128;
+
+  /** Points placed on the ring per node. */
+  private final int replicas;
+
+  /** The nodes, by the points they are placed at. */
+  private final TreeMap<Long, N> ring = new TreeMap<Long, N>();
+
+  /** The nodes, in the order they joined. */
+  private final Set<N> nodes = new LinkedHashSet<N>();
+
+  /** Default constructor. */
+  public HashRing() {
+    this(DEFAULT_REPLICAS);
+  }
+
+  /**
+   * @param replicas Points placed on the ring per node.
+   */
+  public HashRing(int replicas) {
+    if (replicas < 1)
+      throw new IllegalArgumentException("There must be at least one replica");
+    this.replicas = replicas;
+  }
+
+  /**
+   * @param node The node to add.
+   */
+  public synchronized void add(N node) {
+    if (!nodes.add(node))
+      return;
+    for (int i = 0; i < replicas; i++) {
+      ring.put(hash(node + "#" + i), node);
+    }
+  }
+
+  /**
+   * @param node The node to remove.
+   */
+  public synchronized void remove(N node) {
+    if (!nodes.remove(node))
+      return;
+    for (int i = 0; i < replicas; i++) {
+      ring.remove(hash(node + "#" + i), node);
+    }
+  }
+
+  /**
+   * @param key The key.
+   * @return The node the key belongs to, or null if there are no nodes.
+   */
+  public synchronized N nodeFor(String key) {
+    if (ring.isEmpty())
+      return null;
+    java.util.Map.Entry<Long, N> owner = ring.ceilingEntry(hash(key));
+    return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+  }
+
+  /**
+   * @return The nodes, in the order they joined.
+   */
+  public synchronized Collection<N> getNodes() {
+    return Collections.unmodifiableSet(new LinkedHashSet<N>(nodes));
+  }
+
+  /**
+   * @param key The key.
+   * @return The first eight bytes of the key's MD5 digest, which are spread
+   *         evenly however alike the keys.
+   */
+  private static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = hash << 8 | (digest[i] & 0xFF);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is always available", e);
+    }
+  }
+}
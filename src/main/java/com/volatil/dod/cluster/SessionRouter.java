@@ -0,0 +1,428 @@
+package com.volatil.dod.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spreads sessions across several {@link EngineNode engine nodes} with
+ * consistent hashing, so that no coordinator is needed: every session lives on
+ * the node its identifier hashes to, and stays there until nodes join or
+ * leave. A node joining takes over the sessions of the arcs of the ring it
+ * lands on, and a node leaving hands each of its sessions to the node that now
+ * owns it, each game being saved on one node and reactivated on the other.
+ * Commands wait while sessions are being moved.
+ */
+public class SessionRouter implements AutoCloseable {
+  /** Which node each session belongs to. */
+  private final HashRing<InetSocketAddress> ring = new HashRing<InetSocketAddress>();
+
+  /** The connections to each node. */
+  private final ConcurrentHashMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<InetSocketAddress, Connection>();
+
+  /** Held to route commands, and held exclusively to change the nodes. */
+  private final ReentrantReadWriteLock membership = new ReentrantReadWriteLock();
+
+  /**
+   * Default constructor.
+   *
+   * @param nodes The nodes to start with, which must not host any sessions yet.
+   * @throws IOException If a node cannot be reached.
+   */
+  public SessionRouter(Collection<InetSocketAddress> nodes) throws IOException {
+    for (InetSocketAddress node : nodes) {
+      connect(node);
+      ring.add(node);
+    }
+  }
+
+  /**
+   * Starts a game on the node its new session hashes to.
+   *
+   * @return The new session's identifier.
+   * @throws IOException If the node cannot be reached.
+   */
+  public String open() throws IOException {
+    membership.readLock().lock();
+    try {
+      String id = UUID.randomUUID().toString();
+      if (!connectionFor(id).open(id))
+        throw new IOException("Session " + id + " already exists");
+      return id;
+    } finally {
+      membership.readLock().unlock();
+    }
+  }
+
+  /**
+   * Plays a turn of a session's game on the node hosting it.
+   *
+   * @param id      The session's identifier.
+   * @param command The raw command from the player.
+   * @return The response to the player, or null if there is no such session.
+   * @throws IOException If the node cannot be reached.
+   */
+  public String execute(String id, String command) throws IOException {
+    membership.readLock().lock();
+    try {
+      return connectionFor(id).execute(id, command);
+    } finally {
+      membership.readLock().unlock();
+    }
+  }
+
+  /**
+   * Adds a node, moving to it the sessions it now owns. If a session cannot be
+   * moved, those already moved are moved back and the node is not added.
+   *
+   * @param node The node, which must not host any sessions yet.
+   * @return The number of sessions moved.
+   * @throws IOException If a node cannot be reached or a session cannot be
+   *                     moved.
+   */
+  public int join(InetSocketAddress node) throws IOException {
+    membership.writeLock().lock();
+    try {
+      if (ring.getNodes().contains(node))
+        return 0;
+      Connection joining = connect(node);
+      ring.add(node);
+      List<Move> moved = new ArrayList<Move>();
+      try {
+        for (InetSocketAddress other : ring.getNodes()) {
+          if (other.equals(node))
+            continue;
+          Connection from = connections.get(other);
+          for (String id : from.list()) {
+            if (node.equals(ring.nodeFor(id)))
+              move(id, from, joining, moved);
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        ring.remove(node);
+        undo(moved);
+        connections.remove(node).close();
+        throw e;
+      }
+      return moved.size();
+    } finally {
+      membership.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a node, handing each of its sessions to the node that now owns it.
+   * If a session cannot be handed over, those already handed over are moved
+   * back and the node stays.
+   *
+   * @param node The node.
+   * @return The number of sessions moved.
+   * @throws IOException If a node cannot be reached or a session cannot be
+   *                     moved.
+   * @throws IllegalStateException If it is the last node.
+   */
+  public int leave(InetSocketAddress node) throws IOException {
+    membership.writeLock().lock();
+    try {
+      Connection leaving = connections.get(node);
+      if (leaving == null)
+        return 0;
+      if (ring.getNodes().size() == 1)
+        throw new IllegalStateException("The last node cannot leave");
+      ring.remove(node);
+      List<Move> moved = new ArrayList<Move>();
+      try {
+        for (String id : leaving.list()) {
+          move(id, leaving, connections.get(ring.nodeFor(id)), moved);
+        }
+      } catch (IOException | RuntimeException e) {
+        ring.add(node);
+        undo(moved);
+        throw e;
+      }
+      connections.remove(node).close();
+      return moved.size();
+    } finally {
+      membership.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Moves a session's game from one node to another.
+   *
+   * @param id    The session's identifier.
+   * @param from  The node hosting the session.
+   * @param to    The node to move it to.
+   * @param moved The moves made so far, to which this one is added.
+   * @throws IOException If a node cannot be reached or will not take the game.
+   */
+  private void move(String id, Connection from, Connection to, List<Move> moved) throws IOException {
+    if (migrate(id, from, to))
+      moved.add(new Move(id, from, to));
+  }
+
+  /**
+   * Moves sessions back where they came from, latest first.
+   *
+   * @param moved The moves to undo.
+   */
+  private void undo(List<Move> moved) {
+    for (int i = moved.size() - 1; i >= 0; i--) {
+      Move move = moved.get(i);
+      try {
+        migrate(move.id, move.to, move.from);
+      } catch (IOException e) {
+        System.err.println("Failed to move session " + move.id + " back: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Moves a session's game from one node to another, putting it back if the
+   * other node will not take it or cannot be reached.
+   *
+   * @param id   The session's identifier.
+   * @param from The node hosting the session.
+   * @param to   The node to move it to.
+   * @return Whether the session was moved, there being none to move if the
+   *         session ended meanwhile.
+   * @throws IOException If a node cannot be reached or will not take the game.
+   */
+  private boolean migrate(String id, Connection from, Connection to) throws IOException {
+    byte[] game = from.export(id);
+    if (game == null)
+      return false;
+    boolean taken;
+    try {
+      taken = to.load(id, game);
+    } catch (IOException e) {
+      restore(id, from, game);
+      throw e;
+    }
+    if (!taken) {
+      restore(id, from, game);
+      throw new IOException("Session " + id + " was refused");
+    }
+    return true;
+  }
+
+  /**
+   * Puts a game back on the node it was taken from.
+   *
+   * @param id   The session's identifier.
+   * @param from The node the game was taken from.
+   * @param game The saved game.
+   */
+  private static void restore(String id, Connection from, byte[] game) {
+    try {
+      if (from.load(id, game))
+        return;
+    } catch (IOException e) {
+      System.err.println("Failed to put back session " + id + ": " + e.getMessage());
+    }
+    System.err.println("Lost session " + id + " while moving it");
+  }
+
+  /**
+   * @param id The session's identifier.
+   * @return The node the session belongs to.
+   */
+  public InetSocketAddress nodeFor(String id) {
+    return ring.nodeFor(id);
+  }
+
+  /**
+   * @param id The session's identifier.
+   * @return The connection to the node the session belongs to.
+   */
+  private Connection connectionFor(String id) {
+    return connections.get(ring.nodeFor(id));
+  }
+
+  /**
+   * @param node The node.
+   * @return A new connection to the node.
+   * @throws IOException If the node cannot be reached.
+   */
+  private Connection connect(InetSocketAddress node) throws IOException {
+    Connection connection = new Connection(node);
+    connections.put(node, connection);
+    return connection;
+  }
+
+  /** Hangs up on every node, leaving their sessions where they are. */
+  @Override
+  public void close() {
+    for (Connection connection : connections.values()) {
+      connection.close();
+    }
+    connections.clear();
+  }
+
+  /** A session moved from one node to another. */
+  private static class Move {
+    private final String id;
+    private final Connection from;
+    private final Connection to;
+
+    private Move(String id, Connection from, Connection to) {
+      this.id = id;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  /**
+   * Connections to a node, each used by one request at a time. Requests take an
+   * idle socket or open another, so they do not wait on each other; a socket
+   * is put back once its request is answered, and hung up on if the request
+   * fails, so the next one connects afresh.
+   */
+  private static class Connection {
+    /** The most idle sockets kept to a node. */
+    private static final int POOL_SIZE = 4;
+
+    private final InetSocketAddress node;
+    private final ArrayBlockingQueue<Channel> idle = new ArrayBlockingQueue<Channel>(POOL_SIZE);
+    private volatile boolean closed;
+
+    /**
+     * @param node The node.
+     * @throws IOException If the node cannot be reached.
+     */
+    private Connection(InetSocketAddress node) throws IOException {
+      this.node = node;
+      idle.add(new Channel(node));
+    }
+
+    private boolean open(String id) throws IOException {
+      return call((in, out) -> {
+        out.writeByte(EngineNode.OPEN);
+        out.writeUTF(id);
+        out.flush();
+        return in.readBoolean();
+      });
+    }
+
+    private String execute(String id, String command) throws IOException {
+      return call((in, out) -> {
+        out.writeByte(EngineNode.EXECUTE);
+        out.writeUTF(id);
+        out.writeUTF(command);
+        out.flush();
+        return in.readBoolean() ? in.readUTF() : null;
+      });
+    }
+
+    private byte[] export(String id) throws IOException {
+      return call((in, out) -> {
+        out.writeByte(EngineNode.EXPORT);
+        out.writeUTF(id);
+        out.flush();
+        int length = in.readInt();
+        if (length == -1)
+          return null;
+        if (length < 0 || length > EngineNode.MAX_GAME_BYTES)
+          throw new IOException("Node sent a saved game of " + length + " bytes");
+        byte[] game = new byte[length];
+        in.readFully(game);
+        return game;
+      });
+    }
+
+    private boolean load(String id, byte[] game) throws IOException {
+      return call((in, out) -> {
+        out.writeByte(EngineNode.IMPORT);
+        out.writeUTF(id);
+        out.writeInt(game.length);
+        out.write(game);
+        out.flush();
+        return in.readBoolean();
+      });
+    }
+
+    private List<String> list() throws IOException {
+      return call((in, out) -> {
+        out.writeByte(EngineNode.LIST);
+        out.flush();
+        int count = in.readInt();
+        List<String> ids = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+          ids.add(in.readUTF());
+        }
+        return ids;
+      });
+    }
+
+    /**
+     * Sends a request on an idle socket, or a new one if none is idle.
+     *
+     * @param request The request.
+     * @return The answer.
+     * @throws IOException If the node cannot be reached or the socket fails.
+     */
+    private <T> T call(Request<T> request) throws IOException {
+      if (closed)
+        throw new IOException("Hung up on " + node);
+      Channel channel = idle.poll();
+      if (channel == null)
+        channel = new Channel(node);
+      T answer;
+      try {
+        answer = request.send(channel.in, channel.out);
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+      if (!idle.offer(channel) || closed && idle.remove(channel))
+        channel.close();
+      return answer;
+    }
+
+    private void close() {
+      closed = true;
+      Channel channel;
+      while ((channel = idle.poll()) != null) {
+        channel.close();
+      }
+    }
+  }
+
+  /** A request to a node, and the reading of its answer. */
+  private interface Request<T> {
+    T send(DataInputStream in, DataOutputStream out) throws IOException;
+  }
+
+  /** A socket to a node. */
+  private static class Channel {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private Channel(InetSocketAddress node) throws IOException {
+      this.socket = new Socket(node.getAddress(), node.getPort());
+      socket.setTcpNoDelay(true);
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    private void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        System.err.println("Failed to hang up: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -1,12 +1,20 @@
 package com.volatil.dod.game;
 
 import java.awt.Point;
-import java.util.Stack;
 
-import com.volatil.dod.search.AStar;
+import com.volatil.dod.search.GridSearch;
+import com.volatil.dod.search.HierarchicalPathfinder;
+import com.volatil.dod.search.Landmarks;
+import com.volatil.dod.search.Path;
+import com.volatil.dod.search.PathCache;
+import com.volatil.dod.search.SearchStrategy;
+import com.volatil.dod.search.PlanningBudget;
 
 /** AI player that attempts to pursue the player. */
 public class BotPlayer extends Agent {
+  /** Moves a roaming bot makes between looking around. */
+  private static final int LOOK_INTERVAL = 3;
+
   /** Random number generator for all random operations. */
   private RandomNumberGenerator gen = new RandomNumberGenerator();
 
@@ -16,28 +24,197 @@ public class BotPlayer extends Agent {
   /** The last view of the world from the bot. */
   private char[][] currentMap;
 
+  /** Connectivity of the last view, used to only pick reachable goals. */
+  private MapAnalysis currentAnalysis;
+
   /** The last command executed by the bot. */
   private Command lastCommand;
 
-  /** The path from the current position to the target. */
-  private Stack<Direction> path = new Stack<Direction>();
+  /** The path from the current position to the target, refilled by each plan. */
+  private final Path path = new Path();
+
+  /** The work allowed for planning each turn. */
+  private final PlanningBudget budget;
+
+  /** A search that ran out of budget, to be resumed next turn. */
+  private GridSearch pendingSearch;
+
+  /** How the bot searches its view for a path. */
+  private SearchStrategy strategy = SearchStrategy.ASTAR;
+
+  /** Distances to landmarks of the bot's map guiding its searches, if any. */
+  private Landmarks landmarks;
+
+  /** Paths already found through views like the bot's, or null if none are kept. */
+  private PathCache cache;
+
+  /** The map the bot roams, or null if it only plans within its view. */
+  private MapTemplate roamed;
+
+  /** Pathfinder across the whole of the roamed map. */
+  private HierarchicalPathfinder navigator;
+
+  /** Whether the current path is a route across the map. */
+  private boolean roaming;
+
+  /** Moves made since the bot last looked around. */
+  private int movesSinceLook;
+
+  /** Default constructor, planning without any limit. */
+  public BotPlayer() {
+    this(PlanningBudget.UNBOUNDED);
+  }
+
+  /**
+   * Constructor limiting the planning done each turn. Whenever the budget runs
+   * out the bot heads towards the most promising position found so far.
+   * 
+   * @param budget The work allowed for planning each turn.
+   */
+  public BotPlayer(PlanningBudget budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * @param strategy  How the bot searches its view for a path.
+   * @param landmarks Distances to landmarks of the bot's map guiding its
+   *                  searches, or null if there are none.
+   */
+  public void searchWith(SearchStrategy strategy, Landmarks landmarks) {
+    searchWith(strategy, landmarks, null);
+  }
+
+  /**
+   * @param strategy  How the bot searches its view for a path.
+   * @param landmarks Distances to landmarks of the bot's map guiding its
+   *                  searches, or null if there are none.
+   * @param cache     Paths already found through views like the bot's, shared
+   *                  with other bots on its map, or null to keep none.
+   */
+  public void searchWith(SearchStrategy strategy, Landmarks landmarks, PathCache cache) {
+    this.strategy = strategy;
+    this.landmarks = landmarks;
+    this.cache = cache;
+  }
+
+  /**
+   * Lets the bot head for distant parts of the map when it cannot see the
+   * player, rather than only wandering within its view.
+   * 
+   * @param template The map the bot is on.
+   */
+  public void navigateWith(MapTemplate template) {
+    this.roamed = template;
+    this.navigator = template.getNavigator();
+  }
+
+  /**
+   * @return Whether the bot heads for distant parts of the map.
+   */
+  boolean isNavigating() {
+    return navigator != null;
+  }
 
   @Override
   protected Command getNextAction() {
     if (currentMap == null || onTarget()) {
       goal = null;
-      return lastCommand = new Command(Verb.LOOK);
-    } else if (path.isEmpty()) {
-      while (path.isEmpty()) {
-        goal = seekGoal();
-        AStar pathfinder = new AStar(this);
-        path = pathfinder.search();
+      pendingSearch = null;
+      roaming = false;
+      path.clear();
+      return look();
+    }
+    if (roaming) {
+      if (lastCommand.getVerb() == Verb.LOOK && findPlayer() != null) {
+        // Gives up the route to chase the player.
+        roaming = false;
+        goal = null;
+        path.clear();
+      } else if (movesSinceLook >= LOOK_INTERVAL) {
+        return look();
+      }
+    }
+    if (path.isEmpty() || pendingSearch != null) {
+      PathCache.Key key = null;
+      if (pendingSearch == null) {
+        // A goal without a path means the bot has drifted from its last view.
+        if (goal != null || (goal = seekGoal()) == null) {
+          goal = null;
+          return look();
+        }
+        if (roaming) {
+          navigator.findPath(super.getLocation(), goal, path);
+          if (path.isEmpty()) {
+            goal = null;
+            roaming = false;
+            return look();
+          }
+          return move(path.next());
+        }
+        if (cache != null) {
+          int r = getViewRadius();
+          Point location = super.getLocation();
+          key = PathCache.keyOf(currentMap, new Point(r, r),
+              new Point(goal.x - location.x + r, goal.y - location.y + r));
+          if (cache.get(key, path)) {
+            if (path.isEmpty()) {
+              goal = null;
+              return look();
+            }
+            return move(path.next());
+          }
+        }
+        pendingSearch = strategy.create(this);
+        if (landmarks != null)
+          pendingSearch.guideWith(landmarks);
+      }
+      pendingSearch.search(budget, super.getLocation(), path);
+      if (pendingSearch.isComplete()) {
+        // Only a search finished as soon as it started leads from the view's centre.
+        if (key != null)
+          cache.put(key, path);
+        pendingSearch = null;
+      }
+      if (path.isEmpty()) {
+        // Either no path exists or the search needs more time to get anywhere.
+        if (pendingSearch == null)
+          goal = null;
+        return look();
       }
     }
-    Direction d = path.pop();
+    return move(path.next());
+  }
+
+  /**
+   * @return A command to look around.
+   */
+  private Command look() {
+    movesSinceLook = 0;
+    return lastCommand = new Command(Verb.LOOK);
+  }
+
+  /**
+   * @param d The direction to move in.
+   * @return A command to move.
+   */
+  private Command move(Direction d) {
+    movesSinceLook++;
     return lastCommand = new Move(d);
   }
 
+  /**
+   * Abandons the current plan, for when it has been overtaken by events.
+   * 
+   * @return A command to look around before planning again.
+   */
+  protected Command replan() {
+    goal = null;
+    pendingSearch = null;
+    roaming = false;
+    path.clear();
+    return look();
+  }
+
   /**
    * Takes in information from the execution of {@link Command commands}.
    * 
@@ -47,6 +224,15 @@ public class BotPlayer extends Agent {
     switch (lastCommand.getVerb()) {
       case LOOK:
         currentMap = parseMap(commandResponse);
+        currentAnalysis = new MapAnalysis(currentMap);
+        break;
+      case MOVE:
+        // A blocked move leaves the bot off its path, so it must look again.
+        if (!commandResponse.equals("Success")) {
+          replan();
+          currentMap = null;
+        }
+        break;
       default:
         break;
     }
@@ -59,19 +245,21 @@ public class BotPlayer extends Agent {
    * @return A char[][] representing the map.
    */
   private char[][] parseMap(String map) {
-    char[][] parsedMap = new char[5][5];
     String[] lines = map.split("\n");
-    for (int i = 0; i < 5; i++) {
+    char[][] parsedMap = new char[lines.length][];
+    for (int i = 0; i < lines.length; i++) {
       parsedMap[i] = lines[i].toCharArray();
     }
     return parsedMap;
   }
 
   /**
-   * Finds the {@link Player} if it is in the bot's map, otherwise gives a random
-   * location.
+   * Finds the {@link RemotePlayer player} if it is reachable in the bot's map,
+   * otherwise gives a random reachable location, which is anywhere on the map
+   * when the bot is roaming.
    * 
-   * @return The absolute position of the new target.
+   * @return The absolute position of the new target, or null if the bot cannot
+   *         move anywhere.
    */
   private Point seekGoal() {
     Point currentLocation = super.getLocation();
@@ -80,36 +268,51 @@ public class BotPlayer extends Agent {
     if (!onTarget() && goal != null)
       return goal;
 
-    // Look for player on map.
-    for (int y = 0; y < 5; y++) {
-      for (int x = 0; x < 5; x++) {
-        if (currentMap[y][x] == 'P') {
-          return new Point(currentLocation.x - 2, currentLocation.y - 2);
-        }
+    int r = getViewRadius();
+    Point player = findPlayer();
+    if (player != null)
+      return new Point(currentLocation.x + (player.x - r), currentLocation.y + (player.y - r));
+
+    if (navigator != null) {
+      MapAnalysis analysis = roamed.getAnalysis();
+      int component = analysis.componentOf(currentLocation.x, currentLocation.y);
+      Point target = component < 0 ? null : analysis.randomFreeCell(component, gen);
+      if (target != null && !target.equals(currentLocation)) {
+        roaming = true;
+        return target;
       }
     }
 
-    Point relativeTarget = gen.randomLocation(4, 4);
-    while (!isValidGoal(relativeTarget) && goal != super.getLocation()) {
-      relativeTarget = gen.randomLocation(4, 4);
-    }
+    Point relativeTarget = currentAnalysis.randomFreeCell(currentAnalysis.componentOf(r, r), gen);
+    if (relativeTarget == null)
+      return null;
 
-    return new Point(currentLocation.x + (relativeTarget.x - 2), currentLocation.y + (relativeTarget.y - 2));
+    return new Point(currentLocation.x + (relativeTarget.x - r), currentLocation.y + (relativeTarget.y - r));
   }
 
   /**
-   * @return Whether or not the bot has reached its goal.
+   * @return The position of the {@link RemotePlayer player} in the bot's map if
+   *         the bot can reach them, otherwise null.
    */
-  private boolean onTarget() {
-    return super.getLocation().equals(goal);
+  private Point findPlayer() {
+    int r = getViewRadius();
+    int reachable = currentAnalysis.componentOf(r, r);
+    for (int y = 0; y < currentMap.length; y++) {
+      for (int x = 0; x < currentMap[y].length; x++) {
+        boolean self = x == r && y == r;
+        if (currentMap[y][x] == 'P' && !self && currentAnalysis.componentOf(x, y) == reachable) {
+          return new Point(x, y);
+        }
+      }
+    }
+    return null;
   }
 
   /**
-   * @param target The point under consideration.
-   * @return Whether or not the point is a valid goal.
+   * @return Whether or not the bot has reached its goal.
    */
-  private boolean isValidGoal(Point target) {
-    return currentMap[target.y][target.x] != '#' && target != new Point();
+  private boolean onTarget() {
+    return super.getLocation().equals(goal);
   }
 
   /**
@@ -126,6 +329,14 @@ public class BotPlayer extends Agent {
     return currentMap;
   }
 
+  /**
+   * @return How far the bot's last view reached in each direction, the bot
+   *         being at its centre.
+   */
+  public int getViewRadius() {
+    return currentMap.length / 2;
+  }
+
   /** Debug method for examining internal state of the bot. */
   public void debug() {
     System.out.println("--- BOT ---");
@@ -45,6 +45,22 @@ public class Command {
     }
   }
 
+  /**
+   * Works out which verb a raw command from a player would be, without running
+   * it.
+   * 
+   * @param input Raw command line input.
+   * @return The verb, or null if the command is not recognised.
+   */
+  public static Verb verbOf(String input) {
+    String formattedCommand = input.toUpperCase();
+    try {
+      return new Move(formattedCommand).getVerb();
+    } catch (Exception e) {
+      return new Command(formattedCommand).getVerb();
+    }
+  }
+
   /**
    * @return The verb of this command.
    */
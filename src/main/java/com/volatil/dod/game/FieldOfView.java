@@ -0,0 +1,157 @@
+package com.volatil.dod.game;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+/**
+ * What can be seen from each square of a map, computed once when the map is
+ * loaded so that a LOOK is a table lookup and a copy of the map's rows. A
+ * square within the view's radius is visible if the straight line to it from
+ * the viewer passes no wall, the wall itself being visible. The squares of
+ * the view are numbered row by row, and each open square of the map stores one
+ * bit per square of the view.
+ */
+public class FieldOfView {
+  /** Shown in place of a square that is hidden behind a wall. */
+  public static final char HIDDEN = 'X';
+
+  /** Shown in place of a square beyond the edge of the map. */
+  private static final char OFF_MAP = '#';
+
+  /** The most longs a map's table may take, 16MB. */
+  static final int MAX_TABLE_LONGS = 1 << 21;
+
+  /** The radius of the view used when a map does not set one. */
+  static final int DEFAULT_RADIUS = 2;
+
+  /** How far the view reaches in each direction. */
+  private final int radius;
+  /** Side length of the view. */
+  private final int size;
+  /** Width of the map. */
+  private final int width;
+  /** The number of longs holding each square's visibility. */
+  private final int words;
+  /** Visibility of the view from each square, or null if walls do not block it. */
+  private final long[] visible;
+
+  /**
+   * Default constructor, working out what can be seen from every open square
+   * if walls block the view.
+   *
+   * @param map       The tiles of the map.
+   * @param radius    How far the view reaches in each direction.
+   * @param occlusion Whether walls block the view.
+   * @throws IllegalArgumentException If the table for the map would be larger
+   *                                  than {@link #MAX_TABLE_LONGS}.
+   */
+  FieldOfView(char[][] map, int radius, boolean occlusion) {
+    this.radius = radius;
+    this.size = 2 * radius + 1;
+    this.width = map[0].length;
+    this.words = (size * size + 63) / 64;
+    if (!occlusion) {
+      this.visible = null;
+      return;
+    }
+    int height = map.length;
+    long longs = (long) width * height * words;
+    if (longs > MAX_TABLE_LONGS)
+      throw new IllegalArgumentException(
+          "A view of radius " + radius + " over a " + width + "x" + height + " map needs too large a table");
+    this.visible = new long[(int) longs];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        if (map[y][x] == '#')
+          continue;
+        int base = (y * width + x) * words;
+        for (int dy = -radius; dy <= radius; dy++) {
+          for (int dx = -radius; dx <= radius; dx++) {
+            if (inSight(map, x, y, x + dx, y + dy)) {
+              int bit = (dy + radius) * size + dx + radius;
+              visible[base + bit / 64] |= 1L << (bit % 64);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Walks the line between two squares with Bresenham's algorithm.
+   *
+   * @param map   The tiles of the map.
+   * @param fromX The x-coordinate of the viewer.
+   * @param fromY The y-coordinate of the viewer.
+   * @param toX   The x-coordinate of the square looked at.
+   * @param toY   The y-coordinate of the square looked at.
+   * @return Whether no wall lies strictly between the two squares.
+   */
+  private static boolean inSight(char[][] map, int fromX, int fromY, int toX, int toY) {
+    int dx = Math.abs(toX - fromX), dy = -Math.abs(toY - fromY);
+    int stepX = fromX < toX ? 1 : -1, stepY = fromY < toY ? 1 : -1;
+    int error = dx + dy;
+    int x = fromX, y = fromY;
+    while (true) {
+      if (x == toX && y == toY)
+        return true;
+      if ((x != fromX || y != fromY) && (y < 0 || y >= map.length || x < 0 || x >= map[y].length || map[y][x] == '#'))
+        return false;
+      int doubled = 2 * error;
+      if (doubled >= dy) {
+        error += dy;
+        x += stepX;
+      }
+      if (doubled <= dx) {
+        error += dx;
+        y += stepY;
+      }
+    }
+  }
+
+  /**
+   * @return How far the view reaches in each direction.
+   */
+  public int getRadius() {
+    return radius;
+  }
+
+  /**
+   * Renders the view from a square, one row of the view per line.
+   *
+   * @param map      The current tiles of the map, including any agents.
+   * @param location The square viewed from.
+   * @return The view, with hidden squares shown as {@value #HIDDEN}.
+   */
+  String render(char[][] map, Point location) {
+    // Each row of the view is followed by a newline, except the last.
+    char[] view = new char[size * (size + 1) - 1];
+    Arrays.fill(view, OFF_MAP);
+    int left = location.x - radius;
+    int from = Math.max(left, 0), to = Math.min(left + size, width);
+    for (int row = 0; row < size; row++) {
+      int y = location.y - radius + row, offset = row * (size + 1);
+      if (y >= 0 && y < map.length && from < to)
+        System.arraycopy(map[y], from, view, offset + from - left, to - from);
+      if (row < size - 1)
+        view[offset + size] = '\n';
+    }
+
+    if (visible != null) {
+      int base = (location.y * width + location.x) * words;
+      for (int word = 0; word < words; word++) {
+        long hidden = ~visible[base + word];
+        while (hidden != 0) {
+          int bit = word * 64 + Long.numberOfTrailingZeros(hidden);
+          hidden &= hidden - 1;
+          if (bit >= size * size)
+            break;
+          int x = left + bit % size, y = location.y - radius + bit / size;
+          if (y >= 0 && y < map.length && x >= 0 && x < width)
+            view[bit / size * (size + 1) + bit % size] = HIDDEN;
+        }
+      }
+    }
+    return new String(view);
+  }
+}
@@ -0,0 +1,95 @@
+package com.volatil.dod.game;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+/**
+ * Somewhere a game's state can be kept while the game itself is dropped: the
+ * fixed-size fields of the player and the bot, and the squares of the map that
+ * differ from its {@link MapTemplate template}.
+ *
+ * @see RemoteGameLogic#saveTo(GameState)
+ */
+public interface GameState {
+  /**
+   * Records the player.
+   *
+   * @param x          The player's x-coordinate.
+   * @param y          The player's y-coordinate.
+   * @param underneath The tile the player is standing on.
+   * @param gold       The gold the player has collected.
+   * @param turns      The number of commands the player has had played.
+   * @param captured   Whether a bot has caught the player.
+   */
+  void setPlayer(int x, int y, char underneath, int gold, int turns, boolean captured);
+
+  /**
+   * Records the bot.
+   *
+   * @param x          The bot's x-coordinate.
+   * @param y          The bot's y-coordinate.
+   * @param underneath The tile the bot is standing on.
+   * @param roaming    Whether the bot plans routes across the whole map.
+   */
+  void setBot(int x, int y, char underneath, boolean roaming);
+
+  /**
+   * @return A stream to write the changes to the map to.
+   */
+  DataOutputStream writeChanges();
+
+  /**
+   * @return A stream to read the changes to the map from.
+   */
+  DataInputStream readChanges();
+
+  /**
+   * @return The player's x-coordinate.
+   */
+  int getPlayerX();
+
+  /**
+   * @return The player's y-coordinate.
+   */
+  int getPlayerY();
+
+  /**
+   * @return The tile the player is standing on.
+   */
+  char getPlayerUnderneath();
+
+  /**
+   * @return The gold the player has collected.
+   */
+  int getGold();
+
+  /**
+   * @return The number of commands the player has had played.
+   */
+  int getTurns();
+
+  /**
+   * @return Whether a bot has caught the player.
+   */
+  boolean isCaptured();
+
+  /**
+   * @return The bot's x-coordinate.
+   */
+  int getBotX();
+
+  /**
+   * @return The bot's y-coordinate.
+   */
+  int getBotY();
+
+  /**
+   * @return The tile the bot is standing on.
+   */
+  char getBotUnderneath();
+
+  /**
+   * @return Whether the bot plans routes across the whole map.
+   */
+  boolean isRoaming();
+}
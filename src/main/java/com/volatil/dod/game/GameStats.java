@@ -0,0 +1,147 @@
+package com.volatil.dod.game;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How games have ended, per map, across every session. Counters are
+ * {@link LongAdder LongAdders}, striped across threads so that games ending at
+ * once do not contend, and each map keeps a {@link Leaderboard} of its
+ * fastest wins. Everything can be read while games are being played, though a
+ * reading taken mid-update may be a game out between counters.
+ */
+public class GameStats {
+  /** Entries kept on each map's leaderboard when none is given. */
+  public static final int DEFAULT_LEADERBOARD_SIZE = 10;
+
+  /** The statistics games record to unless told otherwise. */
+  private static final GameStats SHARED = new GameStats(DEFAULT_LEADERBOARD_SIZE);
+
+  /** Entries kept on each map's leaderboard. */
+  private final int leaderboardSize;
+
+  /** The statistics of each map, by its name. */
+  private final ConcurrentHashMap<String, MapStats> maps = new ConcurrentHashMap<String, MapStats>();
+
+  /**
+   * @param leaderboardSize Entries kept on each map's leaderboard.
+   */
+  public GameStats(int leaderboardSize) {
+    if (leaderboardSize < 1)
+      throw new IllegalArgumentException("Leaderboard size must be positive");
+    this.leaderboardSize = leaderboardSize;
+  }
+
+  /**
+   * @return The statistics games record to unless told otherwise.
+   */
+  public static GameStats shared() {
+    return SHARED;
+  }
+
+  /**
+   * Records how a game ended.
+   *
+   * @param mapName  The name of the map played.
+   * @param won      Whether the player won.
+   * @param captured Whether a bot caught the player.
+   * @param gold     The gold the player collected.
+   * @param turns    The turns the player took.
+   */
+  void record(String mapName, boolean won, boolean captured, int gold, int turns) {
+    MapStats stats = maps.get(mapName);
+    if (stats == null)
+      stats = maps.computeIfAbsent(mapName, name -> new MapStats(leaderboardSize));
+    stats.games.increment();
+    stats.gold.add(gold);
+    if (captured)
+      stats.captures.increment();
+    if (won) {
+      stats.wins.increment();
+      stats.turnsToWin.add(turns);
+      stats.leaderboard.offer(turns, gold);
+    }
+  }
+
+  /**
+   * @param mapName The name of the map.
+   * @return The map's statistics, or null if no game on it has ended.
+   */
+  public MapStats get(String mapName) {
+    return maps.get(mapName);
+  }
+
+  /**
+   * @return The names of every map a game has ended on.
+   */
+  public Set<String> getMapNames() {
+    return Collections.unmodifiableSet(maps.keySet());
+  }
+
+  /** How games on one map have ended. */
+  public static class MapStats {
+    private final LongAdder games = new LongAdder();
+    private final LongAdder wins = new LongAdder();
+    private final LongAdder captures = new LongAdder();
+    private final LongAdder gold = new LongAdder();
+    private final LongAdder turnsToWin = new LongAdder();
+    private final Leaderboard leaderboard;
+
+    private MapStats(int leaderboardSize) {
+      this.leaderboard = new Leaderboard(leaderboardSize);
+    }
+
+    /**
+     * @return The number of games that have ended.
+     */
+    public long getGames() {
+      return games.sum();
+    }
+
+    /**
+     * @return The number of games won.
+     */
+    public long getWins() {
+      return wins.sum();
+    }
+
+    /**
+     * @return The share of games won, or 0 if none have ended.
+     */
+    public double getWinRate() {
+      long played = games.sum();
+      return played == 0 ? 0 : (double) wins.sum() / played;
+    }
+
+    /**
+     * @return The number of players caught by bots.
+     */
+    public long getCaptures() {
+      return captures.sum();
+    }
+
+    /**
+     * @return The gold collected across every game.
+     */
+    public long getGoldCollected() {
+      return gold.sum();
+    }
+
+    /**
+     * @return The mean turns taken to win, or 0 if no game has been won.
+     */
+    public double getAverageTurnsToWin() {
+      long won = wins.sum();
+      return won == 0 ? 0 : (double) turnsToWin.sum() / won;
+    }
+
+    /**
+     * @return The fastest wins.
+     */
+    public Leaderboard getLeaderboard() {
+      return leaderboard;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package com.volatil.dod.game;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The fastest wins on a map, best first. The board is an immutable array
+ * swapped in whole with compare-and-set, so it can be read at any time without
+ * a lock and a game never waits on another to record its win. Most wins are
+ * slower than every entry of a full board, and are turned away after a single
+ * read.
+ */
+public class Leaderboard {
+  /** The most entries kept. */
+  private final int size;
+
+  /** The entries, fastest first. */
+  private final AtomicReference<Entry[]> entries = new AtomicReference<Entry[]>(new Entry[0]);
+
+  /**
+   * @param size The most entries kept.
+   */
+  public Leaderboard(int size) {
+    if (size < 1)
+      throw new IllegalArgumentException("Leaderboard size must be positive");
+    this.size = size;
+  }
+
+  /**
+   * Records a win, if it is fast enough to make the board.
+   *
+   * @param turns The turns the player took to win.
+   * @param gold  The gold the player collected.
+   * @return Whether the win made the board.
+   */
+  public boolean offer(int turns, int gold) {
+    Entry entry = null;
+    while (true) {
+      Entry[] current = entries.get();
+      if (current.length == size && turns >= current[size - 1].turns)
+        return false;
+      if (entry == null)
+        entry = new Entry(turns, gold, System.currentTimeMillis());
+      // Ties go to the earlier win.
+      int at = current.length;
+      while (at > 0 && current[at - 1].turns > turns) {
+        at--;
+      }
+      Entry[] next = new Entry[Math.min(current.length + 1, size)];
+      System.arraycopy(current, 0, next, 0, at);
+      next[at] = entry;
+      System.arraycopy(current, at, next, at + 1, next.length - at - 1);
+      if (entries.compareAndSet(current, next))
+        return true;
+    }
+  }
+
+  /**
+   * @return The entries, fastest first.
+   */
+  public List<Entry> getEntries() {
+    return Collections.unmodifiableList(Arrays.asList(entries.get()));
+  }
+
+  /** A win on the board. */
+  public static class Entry {
+    private final int turns;
+    private final int gold;
+    private final long wonAt;
+
+    private Entry(int turns, int gold, long wonAt) {
+      this.turns = turns;
+      this.gold = gold;
+      this.wonAt = wonAt;
+    }
+
+    /**
+     * @return The turns the player took to win.
+     */
+    public int getTurns() {
+      return turns;
+    }
+
+    /**
+     * @return The gold the player collected.
+     */
+    public int getGold() {
+      return gold;
+    }
+
+    /**
+     * @return When the game was won, in milliseconds since the epoch.
+     */
+    public long getWonAt() {
+      return wonAt;
+    }
+
+    @Override
+    public String toString() {
+      return turns + " turns, " + gold + " gold";
+    }
+  }
+}
@@ -1,24 +1,22 @@
 package com.volatil.dod.game;
 
 import java.awt.Point;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.text.ParseException;
-import java.util.ArrayList;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Reads and contains in memory the map of the game.
  *
  */
 public class Map {
-	/**
-	 * Loader for accessing map files.
-	 */
-	private final ClassLoader cl = Thread.currentThread().getContextClassLoader();
-
 	/** Random seed for placing agents in the map */
 	private RandomNumberGenerator gen = new RandomNumberGenerator();
 
+	/** The map file this map was created from */
+	private MapTemplate template;
+
 	/** Representation of the map */
 	private char[][] map;
 
@@ -28,22 +26,26 @@ public class Map {
 	/** Gold required for the human player to win */
 	private int goldRequired;
 
+	/** The agents on the map, by location */
+	private final ConcurrentHashMap<Point, Agent> occupants = new ConcurrentHashMap<Point, Agent>();
+
+	/** The stream of the map for spectators, or null until someone asks for it */
+	private volatile SpectatorFeed feed;
+
 	/**
 	 * Default constructor, creates the default map "Very small Labyrinth of doom".
 	 */
 	public Map() {
-		mapName = "Very small Labyrinth of Doom";
-		goldRequired = 2;
-		map = new char[][] {
-				{ '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#' },
-				{ '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
-				{ '#', '.', '.', '.', '.', '.', '.', 'G', '.', '.', '.', '.', '.', '.', '.', '.', '.', 'E', '.', '#' },
-				{ '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
-				{ '#', '.', '.', 'E', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
-				{ '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', 'G', '.', '.', '.', '.', '.', '.', '#' },
-				{ '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
-				{ '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
-				{ '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#' } };
+		bind(MapTemplate.defaultTemplate());
+	}
+
+	/**
+	 * Constructor creating a fresh copy of a map that has already been loaded.
+	 *
+	 * @param template The template of the map.
+	 */
+	public Map(MapTemplate template) {
+		bind(template);
 	}
 
 	/**
@@ -57,7 +59,7 @@ public class Map {
 			readMap(filename);
 			System.out.println("Map loaded.");
 		} catch (Exception e) {
-			System.err.println("Cannot find map, using default map.");
+			System.err.println(e.getMessage() + " Using default map.");
 		}
 	}
 
@@ -82,60 +84,150 @@ public class Map {
 		return mapName;
 	}
 
+	/**
+	 * @return The template the current map was created from.
+	 */
+	public MapTemplate getTemplate() {
+		return template;
+	}
+
 	/**
 	 * Reads the map from file.
 	 *
 	 * @param filename Name of the map's file.
-	 * @throws Exception If the map cannot be read.
+	 * @throws Exception If the map cannot be read or cannot be won.
 	 */
 	protected void readMap(String filename) throws Exception {
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(cl.getResource(filename).openStream()))) {
-			this.mapName = br.readLine();
-			this.goldRequired = Integer.parseInt(br.readLine().split(" ")[1]);
-			ArrayList<String> rawMap = new ArrayList<String>();
-			String nextLine;
-			while ((nextLine = br.readLine()) != null) {
-				rawMap.add(nextLine);
-			}
-			this.map = parseMap(rawMap);
-		} catch (Exception e) {
-			throw new Exception("Failed to read map.");
-		}
+		bind(MapTemplate.load(filename));
 	}
 
 	/**
-	 * Converts the lines from a map file to a character array.
-	 * 
-	 * @param rawMap Line from the map file.
-	 * @return A array representation of the map.
-	 * @throws ParseException Cannot read non-rectangular maps.
-	 */
-	protected char[][] parseMap(ArrayList<String> rawMap) throws ParseException {
-		int height = rawMap.size();
-		int width = rawMap.get(0).length();
-		char[][] map = new char[height][width];
-		int rowIndex = 0;
-		for (String row : rawMap) {
-			if (row.length() != width)
-				throw new ParseException("Map is not rectangular", rowIndex);
-			map[rowIndex] = row.toCharArray();
-			rowIndex++;
-		}
-		return map;
+	 * Replaces the current map with a fresh copy of a template.
+	 *
+	 * @param template The template to copy.
+	 */
+	private void bind(MapTemplate template) {
+		this.template = template;
+		this.mapName = template.getMapName();
+		this.goldRequired = template.getGoldRequired();
+		this.map = template.copyMap();
 	}
 
 	/**
-	 * Places an {@link Agent agent} at the first open square found.
+	 * Places an {@link Agent agent} at a random open square.
 	 * 
 	 * @param agent The agent being placed down.
 	 */
 	public void spawnAgent(Agent agent) {
-		Point location = gen.randomLocation(map);
-		while (!isValidStartPosition(location)) {
-			location = gen.randomLocation(map);
+		Point location = nextSpawn(agent);
+		while (!place(location, agent)) {
+			location = nextSpawn(agent);
 		}
+	}
+
+	/**
+	 * Puts an {@link Agent agent} down at a location if it is a valid starting
+	 * position.
+	 * 
+	 * @param location The location under consideration.
+	 * @param agent    The agent being placed down.
+	 * @return Whether the agent was placed.
+	 */
+	protected boolean place(Point location, Agent agent) {
+		if (!isValidStartPosition(location))
+			return false;
 		map[location.y][location.x] = agent instanceof RemotePlayer ? 'P' : 'B';
+		changed(location);
 		agent.updateLocation(location, '.');
+		occupants.put(location, agent);
+		return true;
+	}
+
+	/**
+	 * Takes an {@link Agent agent} off the map, leaving behind whatever it was
+	 * standing on.
+	 * 
+	 * @param agent The agent leaving the map.
+	 */
+	public void removeAgent(Agent agent) {
+		Point location = agent.getLocation();
+		if (location != null && occupants.remove(location, agent)) {
+			map[location.y][location.x] = agent.getUnderneath();
+			changed(location);
+		}
+	}
+
+	/**
+	 * Writes every square that differs from the template, which together with the
+	 * template is enough to rebuild the map. Each is written as the gap from the
+	 * previous one followed by its tile.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException If the changes cannot be written.
+	 */
+	void writeChanges(DataOutputStream out) throws IOException {
+		char[][] tiles = template.getTiles();
+		int width = map[0].length, cells = width * map.length;
+		int count = 0;
+		for (int i = 0; i < cells; i++) {
+			if (map[i / width][i % width] != tiles[i / width][i % width])
+				count++;
+		}
+		MapCompiler.writeVarInt(out, count);
+		int previous = 0;
+		for (int i = 0; i < cells; i++) {
+			if (map[i / width][i % width] != tiles[i / width][i % width]) {
+				MapCompiler.writeVarInt(out, i - previous);
+				out.writeByte(map[i / width][i % width]);
+				previous = i;
+			}
+		}
+	}
+
+	/**
+	 * Applies the changes written by {@link #writeChanges} to a fresh copy of the
+	 * template.
+	 *
+	 * @param in The stream to read from.
+	 * @throws IOException If the changes are truncated or do not fit the map.
+	 */
+	void readChanges(DataInputStream in) throws IOException {
+		int width = map[0].length, cells = width * map.length;
+		int cell = 0, count = MapCompiler.readVarInt(in);
+		if (count < 0 || count > cells)
+			throw new IOException("More changes than the map has squares.");
+		for (; count > 0; count--) {
+			int gap = MapCompiler.readVarInt(in);
+			cell += gap;
+			if (gap < 0 || cell < 0 || cell >= cells)
+				throw new IOException("Change lies outside the map.");
+			map[cell / width][cell % width] = (char) in.readUnsignedByte();
+		}
+	}
+
+	/**
+	 * Puts an {@link Agent agent} back where the map shows it, after the map has
+	 * been rebuilt from its changes.
+	 *
+	 * @param agent      The agent.
+	 * @param location   Where the agent was.
+	 * @param underneath The tile the agent was standing on.
+	 */
+	void restoreAgent(Agent agent, Point location, char underneath) {
+		agent.updateLocation(location, underneath);
+		char mark = agent instanceof RemotePlayer ? 'P' : 'B';
+		if (map[location.y][location.x] == mark)
+			occupants.put(location, agent);
+	}
+
+	/**
+	 * Players only start where they can reach enough gold and an exit.
+	 *
+	 * @param agent The agent being placed down.
+	 * @return A candidate starting position for the agent.
+	 */
+	private Point nextSpawn(Agent agent) {
+		return agent instanceof RemotePlayer ? template.randomPlayerSpawn(gen) : template.randomSpawn(gen);
 	}
 
 	/**
@@ -161,7 +253,15 @@ public class Map {
 	 * @return Whether the given location can be moved to.
 	 */
 	public boolean open(Point location) {
-		switch (map[location.y][location.x]) {
+		return isOpen(map[location.y][location.x]);
+	}
+
+	/**
+	 * @param tile The tile under consideration.
+	 * @return Whether a tile of this kind can be moved to.
+	 */
+	public static boolean isOpen(char tile) {
+		switch (tile) {
 			case '.':
 			case 'P':
 			case 'B':
@@ -174,20 +274,105 @@ public class Map {
 	}
 
 	/**
-	 * Moves an {@link Agent agent} from their current position to a new position.
+	 * Moves an {@link Agent agent} from their current position to a new position
+	 * if it can be moved to. Agents cannot share a square, except that a
+	 * {@link BotPlayer bot} moving onto a {@link RemotePlayer player} catches them.
 	 * 
 	 * @param next  The next position the agent will occupy.
 	 * @param agent The agent moving to the new position.
+	 * @return "Success", "Illegal Move." or "LOSE" if a player has been caught.
 	 */
 	public String moveAgent(Point next, Agent agent) {
 		Point last = agent.getLocation();
-		map[last.y][last.x] = agent.getUnderneath();
-		if (map[next.y][next.x] == 'P' && agent instanceof BotPlayer) {
+		if (occupants.get(last) != agent)
 			return "LOSE";
+		if (!open(next))
+			return "Illegal Move.";
+		Agent occupant = occupants.get(next);
+		if (occupant != null) {
+			if (!(agent instanceof BotPlayer && occupant instanceof RemotePlayer))
+				return "Illegal Move.";
+			((RemotePlayer) occupant).capture();
+			occupants.remove(next);
+			map[next.y][next.x] = occupant.getUnderneath();
 		}
+		map[last.y][last.x] = agent.getUnderneath();
+		changed(last);
+		occupants.remove(last);
 		agent.updateLocation(next, map[next.y][next.x]);
 		map[next.y][next.x] = agent instanceof RemotePlayer ? 'P' : 'B';
-		return "Success";
+		changed(next);
+		occupants.put(next, agent);
+		return occupant == null ? "Success" : "LOSE";
+	}
+
+	/**
+	 * Picks up the gold an {@link Agent agent} is standing on.
+	 * 
+	 * @param agent The agent picking up gold.
+	 * @return Whether there was gold to pick up.
+	 */
+	public boolean pickup(Agent agent) {
+		if (occupants.get(agent.getLocation()) != agent || agent.getUnderneath() != 'G')
+			return false;
+		agent.setUnderneath('.');
+		return true;
+	}
+
+	/**
+	 * Generates the view around a location, treating anything beyond the edge of
+	 * the map as wall. How far the view reaches, and whether walls block it, is
+	 * up to the map's {@link FieldOfView}.
+	 * 
+	 * @param location The centre of the view.
+	 * @return A String representation of the view, one line per row.
+	 */
+	public String look(Point location) {
+		return template.getFieldOfView().render(map, location);
+	}
+
+	/**
+	 * @return The stream of the map for spectators, started on first use.
+	 */
+	public SpectatorFeed getSpectatorFeed() {
+		if (feed == null) {
+			synchronized (this) {
+				if (feed == null)
+					feed = new SpectatorFeed(this, SpectatorFeed.DEFAULT_KEYFRAME_INTERVAL);
+			}
+		}
+		return feed;
+	}
+
+	/**
+	 * Tells any spectators that a square has been written, after the write.
+	 *
+	 * @param location The square.
+	 */
+	private void changed(Point location) {
+		SpectatorFeed watching = feed;
+		if (watching != null)
+			watching.record(location.y * map[0].length + location.x);
+	}
+
+	/**
+	 * Sends a frame to any spectators.
+	 */
+	void publishFrame() {
+		if (feed != null)
+			feed.publish();
+	}
+
+	/**
+	 * @return A copy of every square of the map as it stands, for
+	 *         {@link SpectatorFeed spectators}' keyframes.
+	 */
+	char[][] snapshot() {
+		char[][] copy = new char[map.length][];
+		for (int y = 0; y < map.length; y++) {
+			copy[y] = map[y].clone();
+		}
+		return copy;
 	}
 
 	/**
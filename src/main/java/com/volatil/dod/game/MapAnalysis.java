@@ -0,0 +1,325 @@
+package com.volatil.dod.game;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+/**
+ * Connectivity of a map, computed once with union-find so that reachability
+ * questions become constant time lookups.
+ */
+public class MapAnalysis {
+  /** Width of the analysed map. */
+  private final int width;
+
+  /** Component of every cell, indexed by {@code y * width + x}, -1 for walls. */
+  private final int[] component;
+
+  /** Cells holding '.' in each component. */
+  private final int[][] freeCells;
+
+  /** Cells holding gold in each component. */
+  private final int[][] goldCells;
+
+  /** Cells holding an exit in each component. */
+  private final int[][] exitCells;
+
+  /**
+   * Default constructor.
+   *
+   * @param map The map to analyse, which must be rectangular.
+   */
+  public MapAnalysis(char[][] map) {
+    int height = map.length;
+    this.width = map[0].length;
+    int cells = width * height;
+
+    // Union-find over every open cell, joining each to its east and south
+    // neighbours.
+    int[] parent = new int[cells];
+    for (int i = 0; i < cells; i++) {
+      parent[i] = i;
+    }
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        if (!Map.isOpen(map[y][x]))
+          continue;
+        if (x + 1 < width && Map.isOpen(map[y][x + 1]))
+          union(parent, y * width + x, y * width + x + 1);
+        if (y + 1 < height && Map.isOpen(map[y + 1][x]))
+          union(parent, y * width + x, (y + 1) * width + x);
+      }
+    }
+
+    // Relabels the roots into dense component indices.
+    this.component = new int[cells];
+    int[] label = new int[cells];
+    Arrays.fill(label, -1);
+    int components = 0;
+    for (int i = 0; i < cells; i++) {
+      if (!Map.isOpen(map[i / width][i % width])) {
+        component[i] = -1;
+        continue;
+      }
+      int root = find(parent, i);
+      if (label[root] == -1)
+        label[root] = components++;
+      component[i] = label[root];
+    }
+
+    this.freeCells = bucket(map, components, '.');
+    this.goldCells = bucket(map, components, 'G');
+    this.exitCells = bucket(map, components, 'E');
+  }
+
+  /**
+   * Constructor for an analysis computed earlier, such as one stored in a
+   * compiled map.
+   *
+   * @param width     Width of the analysed map.
+   * @param height    Height of the analysed map.
+   * @param freeCells Cells holding '.' in each component.
+   * @param goldCells Cells holding gold in each component.
+   * @param exitCells Cells holding an exit in each component.
+   */
+  MapAnalysis(int width, int height, int[][] freeCells, int[][] goldCells, int[][] exitCells) {
+    this.width = width;
+    this.component = new int[width * height];
+    Arrays.fill(component, -1);
+    for (int[][] buckets : new int[][][] { freeCells, goldCells, exitCells }) {
+      for (int c = 0; c < buckets.length; c++) {
+        for (int cell : buckets[c]) {
+          component[cell] = c;
+        }
+      }
+    }
+    this.freeCells = freeCells;
+    this.goldCells = goldCells;
+    this.exitCells = exitCells;
+  }
+
+  /**
+   * Finds the representative of a cell, halving the path as it goes.
+   *
+   * @param parent The union-find forest.
+   * @param i      The cell under consideration.
+   * @return The root of the cell's tree.
+   */
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  /**
+   * Joins the trees of two cells.
+   *
+   * @param parent The union-find forest.
+   * @param a      A cell.
+   * @param b      Another cell.
+   */
+  private static void union(int[] parent, int a, int b) {
+    int rootA = find(parent, a), rootB = find(parent, b);
+    if (rootA != rootB)
+      parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+  }
+
+  /**
+   * Groups every cell holding a given tile by its component.
+   *
+   * @param map        The analysed map.
+   * @param components The number of components.
+   * @param tile       The tile being collected.
+   * @return For each component, the cells holding that tile.
+   */
+  private int[][] bucket(char[][] map, int components, char tile) {
+    int[] counts = new int[components];
+    for (int i = 0; i < component.length; i++) {
+      if (map[i / width][i % width] == tile)
+        counts[component[i]]++;
+    }
+    int[][] buckets = new int[components][];
+    for (int c = 0; c < components; c++) {
+      buckets[c] = new int[counts[c]];
+    }
+    Arrays.fill(counts, 0);
+    for (int i = 0; i < component.length; i++) {
+      if (map[i / width][i % width] == tile)
+        buckets[component[i]][counts[component[i]]++] = i;
+    }
+    return buckets;
+  }
+
+  /**
+   * @return Cells holding '.' in each component, packed as
+   *         {@code y * width + x}.
+   */
+  int[][] getFreeCells() {
+    return freeCells;
+  }
+
+  /**
+   * @return Cells holding gold in each component, packed as
+   *         {@code y * width + x}.
+   */
+  int[][] getGoldCells() {
+    return goldCells;
+  }
+
+  /**
+   * @return Cells holding an exit in each component, packed as
+   *         {@code y * width + x}.
+   */
+  int[][] getExitCells() {
+    return exitCells;
+  }
+
+  /**
+   * @return The number of connected components of open cells.
+   */
+  public int getComponentCount() {
+    return freeCells.length;
+  }
+
+  /**
+   * @param x The x-coordinate of the cell.
+   * @param y The y-coordinate of the cell.
+   * @return The component of the cell, or -1 if it is a wall or off the map.
+   */
+  public int componentOf(int x, int y) {
+    if (x < 0 || y < 0 || x >= width || y * width + x >= component.length)
+      return -1;
+    return component[y * width + x];
+  }
+
+  /**
+   * @param a A point on the map.
+   * @param b Another point on the map.
+   * @return Whether there is a path between the two points.
+   */
+  public boolean connected(Point a, Point b) {
+    int c = componentOf(a.x, a.y);
+    return c != -1 && c == componentOf(b.x, b.y);
+  }
+
+  /**
+   * @param component The component under consideration.
+   * @return The gold reachable from anywhere in the component.
+   */
+  public Point[] getReachableGold(int component) {
+    return toPoints(goldCells[component]);
+  }
+
+  /**
+   * @param component The component under consideration.
+   * @return The exits reachable from anywhere in the component.
+   */
+  public Point[] getReachableExits(int component) {
+    return toPoints(exitCells[component]);
+  }
+
+  /**
+   * @param component    The component under consideration.
+   * @param goldRequired The gold needed to leave the map.
+   * @return Whether a player starting in the component is able to win.
+   */
+  public boolean canWin(int component, int goldRequired) {
+    return goldCells[component].length >= goldRequired && exitCells[component].length > 0;
+  }
+
+  /**
+   * @param goldRequired The gold needed to leave the map.
+   * @return Whether the map can be won from any starting position.
+   */
+  public boolean isWinnable(int goldRequired) {
+    for (int c = 0; c < getComponentCount(); c++) {
+      if (canWin(c, goldRequired) && freeCells[c].length > 0)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param component The component under consideration.
+   * @return The number of cells in the component holding '.'.
+   */
+  public int getFreeCellCount(int component) {
+    return freeCells[component].length;
+  }
+
+  /**
+   * Picks a cell holding '.' in a component.
+   *
+   * @param component The component the cell must belong to.
+   * @param gen       The source of randomness.
+   * @return A random free cell of the component, or null if there are none.
+   */
+  public Point randomFreeCell(int component, RandomNumberGenerator gen) {
+    int[] cells = freeCells[component];
+    if (cells.length == 0)
+      return null;
+    return toPoint(cells[gen.boundedRandom(cells.length)]);
+  }
+
+  /**
+   * Collects the free cells of every component satisfying the win condition.
+   *
+   * @param goldRequired The gold needed to leave the map.
+   * @return Every cell from which a player could win, packed as
+   *         {@code y * width + x}.
+   */
+  int[] winnableFreeCells(int goldRequired) {
+    int total = 0;
+    for (int c = 0; c < getComponentCount(); c++) {
+      if (canWin(c, goldRequired))
+        total += freeCells[c].length;
+    }
+    int[] cells = new int[total];
+    int i = 0;
+    for (int c = 0; c < getComponentCount(); c++) {
+      if (canWin(c, goldRequired)) {
+        System.arraycopy(freeCells[c], 0, cells, i, freeCells[c].length);
+        i += freeCells[c].length;
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * @return Every free cell on the map, packed as {@code y * width + x}.
+   */
+  int[] allFreeCells() {
+    int total = 0;
+    for (int[] cells : freeCells) {
+      total += cells.length;
+    }
+    int[] all = new int[total];
+    int i = 0;
+    for (int[] cells : freeCells) {
+      System.arraycopy(cells, 0, all, i, cells.length);
+      i += cells.length;
+    }
+    return all;
+  }
+
+  /**
+   * @param cell A cell packed as {@code y * width + x}.
+   * @return The coordinates of the cell.
+   */
+  Point toPoint(int cell) {
+    return new Point(cell % width, cell / width);
+  }
+
+  /**
+   * @param cells Cells packed as {@code y * width + x}.
+   * @return The coordinates of the cells.
+   */
+  private Point[] toPoints(int[] cells) {
+    Point[] points = new Point[cells.length];
+    for (int i = 0; i < cells.length; i++) {
+      points[i] = toPoint(cells[i]);
+    }
+    return points;
+  }
+}
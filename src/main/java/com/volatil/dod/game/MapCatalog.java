@@ -0,0 +1,363 @@
+package com.volatil.dod.game;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Every map games can be played on. Maps are parsed and validated in parallel
+ * when the catalog is opened. A catalog backed by a directory also watches it,
+ * so that maps added or changed there are swapped in atomically without
+ * affecting games already in progress.
+ */
+public class MapCatalog implements AutoCloseable {
+  /** Folder of the maps shipped on the classpath. */
+  private static final String MAPS_PATH = "maps";
+
+  /** System property naming an external directory of maps. */
+  public static final String DIRECTORY_PROPERTY = "dod.maps";
+
+  /** Loader for accessing map files. */
+  private static final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+  /** The catalog used by games not given one. */
+  private static MapCatalog shared;
+
+  /** Pool maps are parsed on. */
+  private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /** The maps currently available, replaced whole whenever one changes. */
+  private final AtomicReference<Snapshot> maps = new AtomicReference<Snapshot>(new Snapshot(new TreeMap<String, MapTemplate>()));
+
+  /** The watched directory, or null for the classpath maps. */
+  private final Path directory;
+
+  /** Watches the directory for changes. */
+  private WatchService watcher;
+
+  /**
+   * @param directory The watched directory, or null for the classpath maps.
+   */
+  private MapCatalog(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the catalog of the directory named by the {@value #DIRECTORY_PROPERTY}
+   * system property if it is set, otherwise that of the maps on the classpath.
+   *
+   * @return The catalog used by games not given one.
+   */
+  public static synchronized MapCatalog shared() {
+    if (shared == null) {
+      String directory = System.getProperty(DIRECTORY_PROPERTY);
+      try {
+        shared = directory == null ? fromClasspath() : watch(Paths.get(directory));
+      } catch (IOException e) {
+        System.err.println("Cannot open maps in " + directory + ", using packaged maps.");
+        shared = fromClasspath();
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Loads every map shipped on the classpath.
+   *
+   * @return A catalog of the packaged maps, empty if none can be found.
+   */
+  public static MapCatalog fromClasspath() {
+    MapCatalog catalog = new MapCatalog(null);
+    List<String> names;
+    try {
+      URI uri = cl.getResource(MAPS_PATH).toURI();
+      Path path;
+      if (uri.getScheme().equals("jar")) {
+        FileSystem fs;
+        try {
+          fs = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap());
+        } catch (FileSystemAlreadyExistsException e) {
+          fs = FileSystems.getFileSystem(uri);
+        }
+        path = fs.getPath(MAPS_PATH);
+      } else {
+        path = Paths.get(uri);
+      }
+      try (Stream<Path> walk = Files.walk(path, 1)) {
+        names = walk.map(file -> file.getFileName().toString()).filter(file -> file.endsWith(".txt"))
+            .collect(Collectors.toList());
+      }
+    } catch (Exception e) {
+      return catalog;
+    }
+
+    List<ForkJoinTask<MapTemplate>> loading = new ArrayList<ForkJoinTask<MapTemplate>>();
+    for (String name : names) {
+      loading.add(catalog.pool.submit(() -> MapTemplate.load(MAPS_PATH + "/" + name)));
+    }
+    TreeMap<String, MapTemplate> templates = new TreeMap<String, MapTemplate>();
+    for (int i = 0; i < names.size(); i++) {
+      try {
+        templates.put(baseName(names.get(i)), loading.get(i).join());
+      } catch (RuntimeException e) {
+        System.err.println("Skipping " + names.get(i) + ": " + e.getMessage());
+      }
+    }
+    catalog.maps.set(new Snapshot(templates));
+    return catalog;
+  }
+
+  /**
+   * Loads every map in a directory, then watches it for changes.
+   *
+   * @param directory The directory of maps.
+   * @return A catalog of the directory's maps.
+   * @throws IOException If the directory cannot be read or watched.
+   */
+  public static MapCatalog watch(Path directory) throws IOException {
+    MapCatalog catalog = new MapCatalog(directory);
+    catalog.watcher = directory.getFileSystem().newWatchService();
+    directory.register(catalog.watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+    catalog.rescan();
+    Thread thread = new Thread(catalog::watchLoop, "dod-map-watcher");
+    thread.setDaemon(true);
+    thread.start();
+    return catalog;
+  }
+
+  /**
+   * @param gen The source of randomness.
+   * @return A random map, or the default map if there are none.
+   */
+  public MapTemplate randomTemplate(RandomNumberGenerator gen) {
+    Snapshot snapshot = maps.get();
+    if (snapshot.list.length == 0)
+      return MapTemplate.defaultTemplate();
+    return snapshot.list[gen.boundedRandom(snapshot.list.length)];
+  }
+
+  /**
+   * @param name The filename of the map without its extension, shared by its
+   *             text and compiled forms.
+   * @return The map, or null if there is no such map.
+   */
+  public MapTemplate get(String name) {
+    return maps.get().byName.get(name);
+  }
+
+  /**
+   * @param mapName The name of the map shown to players.
+   * @return The map, or null if there is no such map.
+   */
+  public MapTemplate find(String mapName) {
+    for (MapTemplate template : maps.get().list) {
+      if (template.getMapName().equals(mapName))
+        return template;
+    }
+    return MapTemplate.defaultTemplate().getMapName().equals(mapName) ? MapTemplate.defaultTemplate() : null;
+  }
+
+  /**
+   * @return The filenames of every map available, without their extensions.
+   */
+  public Set<String> getNames() {
+    return maps.get().byName.keySet();
+  }
+
+  /**
+   * Reloads every map in the directory in parallel and swaps them all in at
+   * once.
+   *
+   * @throws IOException If the directory cannot be read.
+   */
+  private void rescan() throws IOException {
+    // A map and its compiled form are one map.
+    TreeSet<String> names = new TreeSet<String>();
+    try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+      for (Path file : listing) {
+        if (isMapFile(file))
+          names.add(baseName(file.getFileName().toString()));
+      }
+    }
+    List<String> ordered = new ArrayList<String>(names);
+    List<ForkJoinTask<MapTemplate>> loading = new ArrayList<ForkJoinTask<MapTemplate>>();
+    for (String name : ordered) {
+      loading.add(pool.submit(() -> load(name)));
+    }
+    TreeMap<String, MapTemplate> templates = new TreeMap<String, MapTemplate>();
+    for (int i = 0; i < ordered.size(); i++) {
+      MapTemplate template = loading.get(i).join();
+      if (template != null)
+        templates.put(ordered.get(i), template);
+    }
+    maps.set(new Snapshot(templates));
+  }
+
+  /**
+   * Reloads one map, replacing or removing it from the catalog. A map that no
+   * longer parses, perhaps because it is still being written, keeps its last
+   * valid version.
+   *
+   * @param file The map's file.
+   */
+  private void reload(Path file) {
+    String name = baseName(file.getFileName().toString());
+    boolean deleted = !Files.exists(directory.resolve(name + MapCompiler.EXTENSION))
+        && !Files.exists(directory.resolve(name + ".txt"));
+    MapTemplate template = deleted ? null : load(name);
+    if (!deleted && template == null)
+      return;
+    maps.updateAndGet(current -> {
+      TreeMap<String, MapTemplate> templates = new TreeMap<String, MapTemplate>(current.byName);
+      if (deleted) {
+        templates.remove(name);
+      } else {
+        templates.put(name, template);
+      }
+      return new Snapshot(templates);
+    });
+  }
+
+  /**
+   * Reads a map from the directory, preferring its compiled form unless its
+   * text has changed since, and falling back to the other form if the one
+   * preferred is missing or cannot be read.
+   *
+   * @param name The filename of the map without its extension.
+   * @return The template of the map, or null if there is no valid map.
+   */
+  private MapTemplate load(String name) {
+    Path compiled = directory.resolve(name + MapCompiler.EXTENSION), text = directory.resolve(name + ".txt");
+    Path first = compiled, second = text;
+    if (isNewer(text, compiled)) {
+      first = text;
+      second = compiled;
+    }
+    MapTemplate template = Files.exists(first) ? parse(first) : null;
+    if (template == null && Files.exists(second))
+      template = parse(second);
+    return template;
+  }
+
+  /**
+   * @param file  A file.
+   * @param other Another file.
+   * @return Whether both files exist and the first was modified after the
+   *         other.
+   */
+  private static boolean isNewer(Path file, Path other) {
+    try {
+      return Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(other)) > 0;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Reads and validates a map from the directory.
+   *
+   * @param file The map's file.
+   * @return The template of the map, or null if it is not a valid map.
+   */
+  private MapTemplate parse(Path file) {
+    try (InputStream in = Files.newInputStream(file)) {
+      MapTemplate template = file.toString().endsWith(MapCompiler.EXTENSION) ? MapCompiler.decode(in.readAllBytes())
+          : MapTemplate.readText(in);
+      if (!template.isWinnable())
+        throw new Exception("Map cannot be won.");
+      return template;
+    } catch (Exception e) {
+      System.err.println("Skipping " + file.getFileName() + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /** Applies changes to the directory until the catalog is closed. */
+  private void watchLoop() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      for (WatchEvent<?> event : key.pollEvents()) {
+        try {
+          if (event.kind() == OVERFLOW) {
+            rescan();
+          } else {
+            Path file = directory.resolve((Path) event.context());
+            if (isMapFile(file))
+              reload(file);
+          }
+        } catch (IOException e) {
+          System.err.println("Failed to rescan maps: " + e.getMessage());
+        }
+      }
+      if (!key.reset())
+        return;
+    }
+  }
+
+  /**
+   * @param filename The filename of a map.
+   * @return The filename without its extension.
+   */
+  private static String baseName(String filename) {
+    int dot = filename.lastIndexOf('.');
+    return dot < 0 ? filename : filename.substring(0, dot);
+  }
+
+  /**
+   * @param file A file in the directory.
+   * @return Whether the file holds a map.
+   */
+  private static boolean isMapFile(Path file) {
+    String name = file.getFileName().toString();
+    return name.endsWith(".txt") || name.endsWith(MapCompiler.EXTENSION);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (watcher != null)
+      watcher.close();
+  }
+
+  /** An immutable view of the maps available at one moment. */
+  private static class Snapshot {
+    private final java.util.Map<String, MapTemplate> byName;
+    private final MapTemplate[] list;
+
+    private Snapshot(TreeMap<String, MapTemplate> templates) {
+      this.byName = Collections.unmodifiableMap(templates);
+      this.list = templates.values().toArray(new MapTemplate[0]);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package com.volatil.dod.game;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+
+/**
+ * Converts text maps into the compact binary ".dodmap" format, which holds the
+ * header, the tiles packed two bits each and the precomputed
+ * {@link MapAnalysis analysis}, so that loading is a single read with no
+ * tokenising or analysis. Run during the build over the compiled maps folder.
+ *
+ * <pre>
+ * int    magic "DODM"
+ * short  version
+ * UTF    map name
+ * int    gold required
+ * short  options, then the keyword and value of each as UTF
+ * int    width, height
+ * byte[] tiles, four per byte
+ * int    components, then per component the free, gold and exit cells, each
+ *        as a varint count followed by the varint gaps between the cells
+ * </pre>
+ */
+public class MapCompiler {
+  /** The first four bytes of every compiled map. */
+  private static final int MAGIC = 0x444F444D;
+
+  /** Version of the format written. */
+  private static final short VERSION = 2;
+
+  /** Extension of compiled maps. */
+  static final String EXTENSION = ".dodmap";
+
+  /** The tiles that can be stored, by their two bit code. */
+  private static final char[] TILES = { '#', '.', 'G', 'E' };
+
+  /**
+   * Compiles every text map in a directory, writing each compiled map next to
+   * its source.
+   *
+   * @param args The directory of maps.
+   * @throws IOException If a map cannot be written.
+   */
+  public static void main(String[] args) throws IOException {
+    Path directory = Paths.get(args.length > 0 ? args[0] : "maps");
+    try (DirectoryStream<Path> maps = Files.newDirectoryStream(directory, "*.txt")) {
+      for (Path source : maps) {
+        MapTemplate template;
+        try (InputStream in = Files.newInputStream(source)) {
+          template = MapTemplate.readText(in);
+        } catch (Exception e) {
+          System.err.println("Skipping " + source.getFileName() + ": " + e.getMessage());
+          continue;
+        }
+        if (!template.isWinnable()) {
+          System.err.println("Skipping " + source.getFileName() + ": map cannot be won.");
+          continue;
+        }
+        Path target = directory.resolve(compiledName(source.getFileName().toString()));
+        Files.write(target, encode(template));
+        System.out.println("Compiled " + source.getFileName() + " to " + target.getFileName());
+      }
+    }
+  }
+
+  /**
+   * @param filename Name of a text map's file.
+   * @return Name of the compiled map's file.
+   */
+  static String compiledName(String filename) {
+    int dot = filename.lastIndexOf('.');
+    return (dot > filename.lastIndexOf('/') ? filename.substring(0, dot) : filename) + EXTENSION;
+  }
+
+  /**
+   * @param template The map to compile.
+   * @return The compiled map.
+   * @throws IOException If the map holds tiles that cannot be stored.
+   */
+  static byte[] encode(MapTemplate template) throws IOException {
+    char[][] map = template.getTiles();
+    int height = map.length, width = map[0].length;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+    out.writeUTF(template.getMapName());
+    out.writeInt(template.getGoldRequired());
+    java.util.Map<String, String> options = template.getOptions().asMap();
+    out.writeShort(options.size());
+    for (java.util.Map.Entry<String, String> option : options.entrySet()) {
+      out.writeUTF(option.getKey());
+      out.writeUTF(option.getValue());
+    }
+    out.writeInt(width);
+    out.writeInt(height);
+
+    byte[] packed = new byte[(width * height + 3) / 4];
+    for (int i = 0; i < width * height; i++) {
+      packed[i / 4] |= code(map[i / width][i % width]) << (i % 4 * 2);
+    }
+    out.write(packed);
+
+    MapAnalysis analysis = template.getAnalysis();
+    out.writeInt(analysis.getComponentCount());
+    for (int c = 0; c < analysis.getComponentCount(); c++) {
+      writeCells(out, analysis.getFreeCells()[c]);
+      writeCells(out, analysis.getGoldCells()[c]);
+      writeCells(out, analysis.getExitCells()[c]);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @param bytes A compiled map.
+   * @return The template of the map.
+   * @throws IOException If the bytes are not a compiled map.
+   */
+  static MapTemplate decode(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (in.readInt() != MAGIC || in.readShort() != VERSION)
+      throw new IOException("Not a compiled map.");
+    String mapName = in.readUTF();
+    int goldRequired = in.readInt();
+    MapOptions options = MapOptions.NONE;
+    for (int i = in.readShort(); i > 0; i--) {
+      try {
+        options = options.with(in.readUTF(), in.readUTF());
+      } catch (ParseException e) {
+        throw new IOException(e.getMessage());
+      }
+    }
+    int width = in.readInt(), height = in.readInt();
+
+    char[][] map = new char[height][width];
+    byte[] packed = new byte[(width * height + 3) / 4];
+    in.readFully(packed);
+    for (int i = 0; i < width * height; i++) {
+      map[i / width][i % width] = TILES[(packed[i / 4] >> (i % 4 * 2)) & 3];
+    }
+
+    int components = in.readInt();
+    int[][] free = new int[components][], gold = new int[components][], exits = new int[components][];
+    for (int c = 0; c < components; c++) {
+      free[c] = readCells(in);
+      gold[c] = readCells(in);
+      exits[c] = readCells(in);
+    }
+    return new MapTemplate(mapName, goldRequired, map, options, new MapAnalysis(width, height, free, gold, exits));
+  }
+
+  /**
+   * @param tile A tile of the map.
+   * @return The two bit code of the tile.
+   * @throws IOException If the tile cannot be stored.
+   */
+  private static int code(char tile) throws IOException {
+    for (int i = 0; i < TILES.length; i++) {
+      if (TILES[i] == tile)
+        return i;
+    }
+    throw new IOException("Cannot compile tile '" + tile + "'.");
+  }
+
+  /**
+   * Writes cells in ascending order as a count then the gaps between them, each
+   * as a variable-length integer, so runs of neighbouring cells take a byte
+   * each.
+   *
+   * @param out   The compiled map being written.
+   * @param cells Packed cells in ascending order.
+   * @throws IOException If the cells cannot be written.
+   */
+  private static void writeCells(DataOutputStream out, int[] cells) throws IOException {
+    writeVarInt(out, cells.length);
+    int previous = 0;
+    for (int cell : cells) {
+      writeVarInt(out, cell - previous);
+      previous = cell;
+    }
+  }
+
+  /**
+   * @param in The compiled map being read.
+   * @return Packed cells in ascending order.
+   * @throws IOException If the compiled map is truncated.
+   */
+  private static int[] readCells(DataInputStream in) throws IOException {
+    int[] cells = new int[readVarInt(in)];
+    int previous = 0;
+    for (int i = 0; i < cells.length; i++) {
+      previous += readVarInt(in);
+      cells[i] = previous;
+    }
+    return cells;
+  }
+
+  /**
+   * Writes a non-negative integer seven bits per byte, lowest first, so that
+   * small values take a single byte.
+   *
+   * @param out   The stream to write to.
+   * @param value The value to write.
+   * @throws IOException If the value cannot be written.
+   */
+  static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  /**
+   * @param in The stream to read from.
+   * @return The next integer written by {@link #writeVarInt}.
+   * @throws IOException If the stream is truncated.
+   */
+  static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.readByte();
+      value |= (b & 0x7F) << shift;
+      if (b >= 0)
+        return value;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package com.volatil.dod.game;
+
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.TreeMap;
+
+import com.volatil.dod.search.PathCache;
+import com.volatil.dod.search.SearchStrategy;
+
+/**
+ * Optional settings for a map, given in its file as header lines between the
+ * gold required and the tiles. Each line is a keyword and a value, such as
+ * {@code search jps}.
+ */
+public class MapOptions {
+  /** Keyword choosing the {@link SearchStrategy} bots use on the map. */
+  static final String SEARCH = "search";
+
+  /** Keyword setting how many landmarks are used to guide bots on the map. */
+  static final String LANDMARKS = "landmarks";
+
+  /** Keyword setting how far players see, with walls blocking their view. */
+  static final String VIEW = "view";
+
+  /**
+   * Keyword setting how many paths bots on the map keep for reuse, with 0
+   * keeping none.
+   */
+  static final String PATH_CACHE = "pathcache";
+
+  /** The furthest a map may let players see. */
+  private static final int MAX_VIEW_RADIUS = 15;
+
+  /** The options of a map that sets none. */
+  static final MapOptions NONE = new MapOptions(new TreeMap<String, String>());
+
+  /** The value of each option set, by keyword. */
+  private final TreeMap<String, String> values;
+
+  /**
+   * @param values The value of each option set, by keyword.
+   */
+  private MapOptions(TreeMap<String, String> values) {
+    this.values = values;
+  }
+
+  /**
+   * @param line A line from the header of a map file.
+   * @return Whether the line sets an option rather than being part of the map.
+   */
+  static boolean isOption(String line) {
+    return line.matches("[a-z]+ \\S+");
+  }
+
+  /**
+   * @param key   The option's keyword.
+   * @param value The option's value.
+   * @return These options with one more set.
+   * @throws ParseException If the option is unknown or its value is invalid.
+   */
+  MapOptions with(String key, String value) throws ParseException {
+    TreeMap<String, String> next = new TreeMap<String, String>(values);
+    next.put(key, value);
+    MapOptions options = new MapOptions(next);
+    try {
+      switch (key) {
+        case SEARCH:
+          options.getSearchStrategy();
+          break;
+        case LANDMARKS:
+          if (options.getLandmarkCount() < 1)
+            throw new IllegalArgumentException();
+          break;
+        case VIEW:
+          if (options.getViewRadius() < 1 || options.getViewRadius() > MAX_VIEW_RADIUS)
+            throw new IllegalArgumentException();
+          break;
+        case PATH_CACHE:
+          if (options.getPathCacheCapacity() < 0)
+            throw new IllegalArgumentException();
+          break;
+        default:
+          throw new ParseException("Unknown map option " + key, 0);
+      }
+    } catch (IllegalArgumentException e) {
+      throw new ParseException("Invalid value for map option " + key, 0);
+    }
+    return options;
+  }
+
+  /**
+   * @param line A header line setting an option.
+   * @return These options with the line's option set.
+   * @throws ParseException If the option is unknown or its value is invalid.
+   */
+  MapOptions with(String line) throws ParseException {
+    String[] option = line.split(" ");
+    return with(option[0], option[1]);
+  }
+
+  /**
+   * @return The value of each option set, by keyword.
+   */
+  java.util.Map<String, String> asMap() {
+    return Collections.unmodifiableMap(values);
+  }
+
+  /**
+   * @return The search bots use on the map, {@link SearchStrategy#ASTAR A*}
+   *         unless set otherwise.
+   */
+  public SearchStrategy getSearchStrategy() {
+    String value = values.get(SEARCH);
+    return value == null ? SearchStrategy.ASTAR : SearchStrategy.valueOf(value.toUpperCase());
+  }
+
+  /**
+   * @return The number of landmarks used to guide bots on the map, 0 unless set
+   *         otherwise.
+   */
+  public int getLandmarkCount() {
+    String value = values.get(LANDMARKS);
+    return value == null ? 0 : Integer.parseInt(value);
+  }
+
+  /**
+   * @return How far players see on the map, which is
+   *         {@value FieldOfView#DEFAULT_RADIUS} unless set otherwise.
+   */
+  public int getViewRadius() {
+    String value = values.get(VIEW);
+    return value == null ? FieldOfView.DEFAULT_RADIUS : Integer.parseInt(value);
+  }
+
+  /**
+   * @return Whether walls block the players' view, which they do only on maps
+   *         setting how far players see.
+   */
+  public boolean isViewBlocked() {
+    return values.containsKey(VIEW);
+  }
+
+  /**
+   * @return How many paths bots on the map keep for reuse, which is
+   *         {@value PathCache#DEFAULT_CAPACITY} unless set otherwise.
+   */
+  public int getPathCacheCapacity() {
+    String value = values.get(PATH_CACHE);
+    return value == null ? PathCache.DEFAULT_CAPACITY : Integer.parseInt(value);
+  }
+}
@@ -0,0 +1,342 @@
+package com.volatil.dod.game;
+
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.volatil.dod.search.HierarchicalPathfinder;
+import com.volatil.dod.search.Landmarks;
+import com.volatil.dod.search.PathCache;
+
+/**
+ * Immutable contents of a map file, shared by every game played on it along
+ * with everything precomputed when it is loaded.
+ */
+public class MapTemplate {
+  /** Loader for accessing map files. */
+  private static final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+
+  /** Every template loaded so far, by filename. */
+  private static final ConcurrentHashMap<String, MapTemplate> loaded = new ConcurrentHashMap<String, MapTemplate>();
+
+  /** The "Very small Labyrinth of Doom", used when no map can be loaded. */
+  private static final MapTemplate DEFAULT = new MapTemplate("Very small Labyrinth of Doom", 2, new char[][] {
+      { '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#' },
+      { '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
+      { '#', '.', '.', '.', '.', '.', '.', 'G', '.', '.', '.', '.', '.', '.', '.', '.', '.', 'E', '.', '#' },
+      { '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
+      { '#', '.', '.', 'E', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
+      { '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', 'G', '.', '.', '.', '.', '.', '.', '#' },
+      { '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
+      { '#', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '.', '#' },
+      { '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#', '#' } });
+
+  /** Map name. */
+  private final String mapName;
+
+  /** Gold required for the human player to win. */
+  private final int goldRequired;
+
+  /** Representation of the map, never modified. */
+  private final char[][] map;
+
+  /** Optional settings given in the map's header. */
+  private final MapOptions options;
+
+  /** Connectivity of the map. */
+  private final MapAnalysis analysis;
+
+  /** Free cells from which the player is able to win. */
+  private final int[] playerSpawns;
+
+  /** Every free cell on the map. */
+  private final int[] spawns;
+
+  /** Distances to the map's landmarks, or null if it sets none. */
+  private final Landmarks landmarks;
+
+  /** What can be seen from each square of the map. */
+  private final FieldOfView fieldOfView;
+
+  /** Paths bots on the map have found through their views, or null if none are kept. */
+  private final PathCache pathCache;
+
+  /** Side length of the clusters used for navigating the whole map. */
+  private static final int CLUSTER_SIZE = 10;
+
+  /** Pathfinder across the whole map, built the first time it is needed. */
+  private volatile HierarchicalPathfinder navigator;
+
+  /**
+   * Default constructor.
+   *
+   * @param mapName      The name of the map.
+   * @param goldRequired Gold required for the human player to win.
+   * @param map          The tiles of the map.
+   */
+  MapTemplate(String mapName, int goldRequired, char[][] map) {
+    this(mapName, goldRequired, map, MapOptions.NONE);
+  }
+
+  /**
+   * Constructor for a map with optional settings.
+   *
+   * @param mapName      The name of the map.
+   * @param goldRequired Gold required for the human player to win.
+   * @param map          The tiles of the map.
+   * @param options      Optional settings given in the map's header.
+   */
+  MapTemplate(String mapName, int goldRequired, char[][] map, MapOptions options) {
+    this(mapName, goldRequired, map, options, new MapAnalysis(map));
+  }
+
+  /**
+   * Constructor for a map whose analysis has already been done.
+   *
+   * @param mapName      The name of the map.
+   * @param goldRequired Gold required for the human player to win.
+   * @param map          The tiles of the map.
+   * @param options      Optional settings given in the map's header.
+   * @param analysis     The connectivity of the map.
+   */
+  MapTemplate(String mapName, int goldRequired, char[][] map, MapOptions options, MapAnalysis analysis) {
+    this.mapName = mapName;
+    this.goldRequired = goldRequired;
+    this.map = map;
+    this.options = options;
+    this.analysis = analysis;
+    this.playerSpawns = analysis.winnableFreeCells(goldRequired);
+    this.spawns = analysis.allFreeCells();
+    this.fieldOfView = new FieldOfView(map, options.getViewRadius(), options.isViewBlocked());
+    this.landmarks = options.getLandmarkCount() > 0 ? new Landmarks(map, options.getLandmarkCount()) : null;
+    this.pathCache = options.getPathCacheCapacity() > 0 ? new PathCache(options.getPathCacheCapacity()) : null;
+  }
+
+  /**
+   * @return The template used when no map can be loaded.
+   */
+  public static MapTemplate defaultTemplate() {
+    return DEFAULT;
+  }
+
+  /**
+   * Returns the template for a map file, reading and analysing it the first
+   * time it is requested.
+   *
+   * @param filename Name of the map's file.
+   * @return The template of the map.
+   * @throws Exception If the map cannot be read or cannot be won.
+   */
+  public static MapTemplate load(String filename) throws Exception {
+    MapTemplate template = loaded.get(filename);
+    if (template == null) {
+      template = read(filename);
+      MapTemplate raced = loaded.putIfAbsent(filename, template);
+      if (raced != null)
+        template = raced;
+    }
+    return template;
+  }
+
+  /**
+   * Reads a map from file, preferring its compiled form when there is one.
+   *
+   * @param filename Name of the map's file.
+   * @return The template of the map.
+   * @throws Exception If the map cannot be read or cannot be won.
+   */
+  private static MapTemplate read(String filename) throws Exception {
+    MapTemplate template = null;
+    try {
+      URL compiled = cl.getResource(MapCompiler.compiledName(filename));
+      if (compiled != null) {
+        try (InputStream in = compiled.openStream()) {
+          template = MapCompiler.decode(in.readAllBytes());
+        } catch (Exception e) {
+          // A stale or corrupt compiled form gives way to the text source.
+          System.err.println("Ignoring compiled " + filename + ": " + e.getMessage());
+        }
+      }
+      if (template == null) {
+        try (InputStream in = cl.getResource(filename).openStream()) {
+          template = readText(in);
+        }
+      }
+    } catch (Exception e) {
+      throw new Exception("Failed to read map.", e);
+    }
+    if (!template.isWinnable())
+      throw new Exception("Map cannot be won.");
+    return template;
+  }
+
+  /**
+   * Reads a map in the text format, whose header may set {@link MapOptions
+   * options} after the gold required.
+   *
+   * @param in The contents of the map file.
+   * @return The template of the map.
+   * @throws Exception If the map cannot be parsed.
+   */
+  static MapTemplate readText(InputStream in) throws Exception {
+    BufferedReader br = new BufferedReader(new InputStreamReader(in));
+    String mapName = br.readLine();
+    int goldRequired = Integer.parseInt(br.readLine().split(" ")[1]);
+    MapOptions options = MapOptions.NONE;
+    ArrayList<String> rawMap = new ArrayList<String>();
+    String nextLine;
+    while ((nextLine = br.readLine()) != null) {
+      if (rawMap.isEmpty() && MapOptions.isOption(nextLine)) {
+        options = options.with(nextLine);
+      } else {
+        rawMap.add(nextLine);
+      }
+    }
+    return new MapTemplate(mapName, goldRequired, parseMap(rawMap), options);
+  }
+
+  /**
+   * Converts the lines from a map file to a character array.
+   *
+   * @param rawMap Line from the map file.
+   * @return A array representation of the map.
+   * @throws ParseException Cannot read non-rectangular maps.
+   */
+  static char[][] parseMap(ArrayList<String> rawMap) throws ParseException {
+    int height = rawMap.size();
+    int width = rawMap.get(0).length();
+    char[][] map = new char[height][width];
+    int rowIndex = 0;
+    for (String row : rawMap) {
+      if (row.length() != width)
+        throw new ParseException("Map is not rectangular", rowIndex);
+      map[rowIndex] = row.toCharArray();
+      rowIndex++;
+    }
+    return map;
+  }
+
+  /**
+   * @return The width of the map in squares.
+   */
+  public int getWidth() {
+    return map[0].length;
+  }
+
+  /**
+   * @return The height of the map in squares.
+   */
+  public int getHeight() {
+    return map.length;
+  }
+
+  /**
+   * @return Gold required to exit the map.
+   */
+  public int getGoldRequired() {
+    return goldRequired;
+  }
+
+  /**
+   * @return The name of the map.
+   */
+  public String getMapName() {
+    return mapName;
+  }
+
+  /**
+   * @return Optional settings given in the map's header.
+   */
+  public MapOptions getOptions() {
+    return options;
+  }
+
+  /**
+   * @return The connectivity of the map.
+   */
+  public MapAnalysis getAnalysis() {
+    return analysis;
+  }
+
+  /**
+   * @return What can be seen from each square of the map.
+   */
+  public FieldOfView getFieldOfView() {
+    return fieldOfView;
+  }
+
+  /**
+   * @return Distances to the map's landmarks, shared by every game on it, or
+   *         null if the map sets none.
+   */
+  public Landmarks getLandmarks() {
+    return landmarks;
+  }
+
+  /**
+   * @return Paths bots on the map have found through their views, shared by
+   *         every game on it, or null if the map keeps none.
+   */
+  public PathCache getPathCache() {
+    return pathCache;
+  }
+
+  /**
+   * @return A pathfinder across the whole map, shared by every game on it.
+   */
+  public HierarchicalPathfinder getNavigator() {
+    if (navigator == null) {
+      synchronized (this) {
+        if (navigator == null)
+          navigator = new HierarchicalPathfinder(map, CLUSTER_SIZE);
+      }
+    }
+    return navigator;
+  }
+
+  /**
+   * @return Whether a player could start anywhere on the map and win.
+   */
+  public boolean isWinnable() {
+    return playerSpawns.length > 0;
+  }
+
+  /**
+   * @return The map's tiles, which must not be modified.
+   */
+  char[][] getTiles() {
+    return map;
+  }
+
+  /**
+   * @return A fresh copy of the map's tiles which may be modified freely.
+   */
+  char[][] copyMap() {
+    char[][] copy = new char[map.length][];
+    for (int y = 0; y < map.length; y++) {
+      copy[y] = map[y].clone();
+    }
+    return copy;
+  }
+
+  /**
+   * @param gen The source of randomness.
+   * @return A random free cell from which the player is able to win.
+   */
+  Point randomPlayerSpawn(RandomNumberGenerator gen) {
+    return analysis.toPoint(playerSpawns[gen.boundedRandom(playerSpawns.length)]);
+  }
+
+  /**
+   * @param gen The source of randomness.
+   * @return A random free cell anywhere on the map.
+   */
+  Point randomSpawn(RandomNumberGenerator gen) {
+    return analysis.toPoint(spawns[gen.boundedRandom(spawns.length)]);
+  }
+}
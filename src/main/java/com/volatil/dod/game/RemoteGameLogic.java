@@ -1,50 +1,454 @@
 package com.volatil.dod.game;
 
 import java.awt.Point;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collections;
-import java.util.List;
-import java.util.Random;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.volatil.dod.search.PlanningBudget;
 
 public class RemoteGameLogic {
+  /** Response to commands that cannot be parsed, which cost the player no turn. */
+  public static final String UNRECOGNISED = "Command not recognised.";
+
+  /** Version of the format written by {@link #writeState}. */
+  private static final int STATE_VERSION = 2;
+
+  /** The map the game is played on, shared with other games. */
+  private final MapTemplate template;
+  /** The game's copy of the map, or null until the game {@link #start starts}. */
   private Map map;
   private RemotePlayer player = new RemotePlayer();
-  private BotPlayer bot = new BotPlayer();
-  // ! This may need to be changed based on how the file is run.
-  private final String MAPS_PATH = "maps";
+  /** The bot, or null until the game starts. */
+  private BotPlayer bot;
+  /** The work the bot may do planning each turn. */
+  private final PlanningBudget botBudget;
+  /** Runs the bot's planning between commands, or null to plan inline. */
+  private Executor planner;
+  /** The bot's next action, being planned in the background. */
+  private CompletableFuture<Command> plannedAction;
   /**
-   * Loader for accessing map files.
+   * The bot's next action, planned in the background and waited for but not
+   * yet taken. Planning has already moved the bot along its path, so the
+   * action is kept rather than planned afresh.
    */
-  private final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+  private Command readyAction;
+  /** The bot's location when its next action was planned. */
+  private Point plannedFrom;
+  /** Random number generator for choosing maps. */
+  private RandomNumberGenerator gen = new RandomNumberGenerator();
+  /** Where the game's outcome is recorded. */
+  private GameStats stats = GameStats.shared();
+  /** The number of commands the player has had played. */
+  private int turns;
+  /** Whether the game's outcome has been recorded. */
+  private boolean finished;
 
   /**
    * Default constructor. Presents map selection menu to the player and loads.
    */
   public RemoteGameLogic() {
-    String mapChoice = chooseMap();
-    this.map = new Map(mapChoice);
+    this(PlanningBudget.UNBOUNDED);
+  }
+
+  /**
+   * Constructor bounding the time the bot may spend planning each turn, so that
+   * its turn never holds up the response to the player.
+   * 
+   * @param botBudget The work the bot may do planning each turn.
+   */
+  public RemoteGameLogic(PlanningBudget botBudget) {
+    this(MapCatalog.shared(), botBudget);
+  }
+
+  /**
+   * Constructor choosing a random map from a particular catalog. Only the map
+   * is chosen: the game's copy of it, the agents and the bot are left until the
+   * first command that needs them, so that sessions which only say hello cost
+   * next to nothing.
+   * 
+   * @param catalog   The maps to choose from.
+   * @param botBudget The work the bot may do planning each turn.
+   */
+  public RemoteGameLogic(MapCatalog catalog, PlanningBudget botBudget) {
+    this.template = catalog.randomTemplate(gen);
+    this.botBudget = botBudget;
+  }
+
+  /**
+   * Constructor joining a dungeon shared with other games. The player and their
+   * bot are placed into the dungeon alongside everyone already there.
+   * 
+   * @param dungeon   The shared dungeon.
+   * @param botBudget The work the bot may do planning each turn.
+   */
+  public RemoteGameLogic(SharedDungeon dungeon, PlanningBudget botBudget) {
+    this.template = dungeon.getTemplate();
+    this.botBudget = botBudget;
+    this.bot = new BotPlayer(botBudget);
+    this.map = dungeon;
+    prepareBot();
     map.spawnAgent(player);
     map.spawnAgent(bot);
   }
 
+  /**
+   * Constructor reactivating a game saved by {@link #writeState}. The bot keeps
+   * its position but forgets its plans, so it starts by looking around. A game
+   * saved before it started is left to start on its first command here too.
+   * 
+   * @param template  The map the game was played on.
+   * @param in        The saved game.
+   * @param botBudget The work the bot may do planning each turn.
+   * @throws IOException If the saved game is truncated, in another format or
+   *                     for another map.
+   */
+  public RemoteGameLogic(MapTemplate template, DataInputStream in, PlanningBudget botBudget) throws IOException {
+    if (!readMapName(in).equals(template.getMapName()))
+      throw new IOException("Saved game is for another map.");
+    this.template = template;
+    this.botBudget = botBudget;
+    if (!in.readBoolean()) {
+      this.player = new RemotePlayer(MapCompiler.readVarInt(in));
+      this.turns = MapCompiler.readVarInt(in);
+      return;
+    }
+    this.bot = new BotPlayer(botBudget);
+    this.map = new Map(template);
+    map.readChanges(in);
+
+    Point playerLocation = readLocation(in, template);
+    char playerUnderneath = (char) in.readUnsignedByte();
+    this.player = new RemotePlayer(MapCompiler.readVarInt(in));
+    this.turns = MapCompiler.readVarInt(in);
+    if (in.readBoolean())
+      player.capture();
+    map.restoreAgent(player, playerLocation, playerUnderneath);
+
+    Point botLocation = readLocation(in, template);
+    map.restoreAgent(bot, botLocation, (char) in.readUnsignedByte());
+    prepareBot();
+    if (in.readBoolean())
+      bot.navigateWith(template);
+  }
+
+  /**
+   * Constructor reactivating a game saved by {@link #saveTo}, in the same way
+   * as from a stream.
+   * 
+   * @param template  The map the game was played on.
+   * @param state     The saved game.
+   * @param botBudget The work the bot may do planning each turn.
+   * @throws IOException If the saved game does not fit the map.
+   */
+  public RemoteGameLogic(MapTemplate template, GameState state, PlanningBudget botBudget) throws IOException {
+    this.template = template;
+    this.botBudget = botBudget;
+    this.bot = new BotPlayer(botBudget);
+    this.map = new Map(template);
+    try (DataInputStream in = state.readChanges()) {
+      map.readChanges(in);
+    }
+
+    this.player = new RemotePlayer(state.getGold());
+    this.turns = state.getTurns();
+    if (state.isCaptured())
+      player.capture();
+    map.restoreAgent(player, checkLocation(state.getPlayerX(), state.getPlayerY(), template),
+        state.getPlayerUnderneath());
+
+    map.restoreAgent(bot, checkLocation(state.getBotX(), state.getBotY(), template), state.getBotUnderneath());
+    prepareBot();
+    if (state.isRoaming())
+      bot.navigateWith(template);
+  }
+
+  /**
+   * Reads the start of a game saved by {@link #writeState}, to find the map it
+   * needs.
+   * 
+   * @param in The saved game.
+   * @return The name of the map the game was played on.
+   * @throws IOException If the saved game is truncated or in another format.
+   */
+  public static String readMapName(DataInputStream in) throws IOException {
+    int version = in.readUnsignedByte();
+    if (version != STATE_VERSION)
+      throw new IOException("Saved game is in format " + version + ", not " + STATE_VERSION + ".");
+    return in.readUTF();
+  }
+
+  /**
+   * @param in       The saved game.
+   * @param template The map the game was played on.
+   * @return The location read.
+   * @throws IOException If the location is not on the map.
+   */
+  private static Point readLocation(DataInputStream in, MapTemplate template) throws IOException {
+    return checkLocation(MapCompiler.readVarInt(in), MapCompiler.readVarInt(in), template);
+  }
+
+  /**
+   * @param x        The saved x-coordinate.
+   * @param y        The saved y-coordinate.
+   * @param template The map the game was played on.
+   * @return The location.
+   * @throws IOException If the location is not on the map.
+   */
+  private static Point checkLocation(int x, int y, MapTemplate template) throws IOException {
+    if (x < 0 || y < 0 || x >= template.getWidth() || y >= template.getHeight())
+      throw new IOException("Saved location lies outside the map.");
+    return new Point(x, y);
+  }
+
+  /**
+   * Copies the map and places the player and their bot on it, if that has not
+   * been done yet.
+   */
+  private void start() {
+    if (map != null)
+      return;
+    map = new Map(template);
+    bot = new BotPlayer(botBudget);
+    prepareBot();
+    map.spawnAgent(player);
+    map.spawnAgent(bot);
+  }
+
+  /**
+   * @return Whether the game's map has been copied and the agents placed on it,
+   *         which waits for the first command that needs them.
+   */
+  public boolean isStarted() {
+    return map != null;
+  }
+
+  /**
+   * Saves the game compactly: the format's version, the map's name and the
+   * squares that differ from it, then the state of the player and the bot. A
+   * game not yet started is saved as only its map's name, gold and turns, and
+   * is not started to be saved. Games in a {@link SharedDungeon shared dungeon}
+   * cannot be saved, since the dungeon outlives them.
+   * 
+   * @param out The stream to write to.
+   * @throws IOException If the game cannot be written.
+   */
+  public void writeState(DataOutputStream out) throws IOException {
+    if (isShared())
+      throw new IllegalStateException("Games in a shared dungeon cannot be saved");
+    out.writeByte(STATE_VERSION);
+    out.writeUTF(template.getMapName());
+    out.writeBoolean(isStarted());
+    if (!isStarted()) {
+      MapCompiler.writeVarInt(out, player.getGold());
+      MapCompiler.writeVarInt(out, turns);
+      return;
+    }
+    awaitPlan();
+    map.writeChanges(out);
+
+    MapCompiler.writeVarInt(out, player.getLocation().x);
+    MapCompiler.writeVarInt(out, player.getLocation().y);
+    out.writeByte(player.getUnderneath());
+    MapCompiler.writeVarInt(out, player.getGold());
+    MapCompiler.writeVarInt(out, turns);
+    out.writeBoolean(player.isCaptured());
+
+    MapCompiler.writeVarInt(out, bot.getLocation().x);
+    MapCompiler.writeVarInt(out, bot.getLocation().y);
+    out.writeByte(bot.getUnderneath());
+    out.writeBoolean(bot.isNavigating());
+  }
+
+  /**
+   * Saves the game's fields and the squares of its map that differ from the
+   * template, for keeping outside the heap. Games not yet started, and games in
+   * a {@link SharedDungeon shared dungeon}, cannot be saved.
+   * 
+   * @param state Where to save the game.
+   * @throws IOException If the changes to the map do not fit.
+   */
+  public void saveTo(GameState state) throws IOException {
+    if (isShared())
+      throw new IllegalStateException("Games in a shared dungeon cannot be saved");
+    if (!isStarted())
+      throw new IllegalStateException("Games not yet started cannot be saved");
+    awaitPlan();
+    try (DataOutputStream out = state.writeChanges()) {
+      map.writeChanges(out);
+    }
+    Point location = player.getLocation();
+    state.setPlayer(location.x, location.y, player.getUnderneath(), player.getGold(), turns, player.isCaptured());
+    location = bot.getLocation();
+    state.setBot(location.x, location.y, bot.getUnderneath(), bot.isNavigating());
+  }
+
+  /**
+   * Records the game's outcome somewhere other than the
+   * {@link GameStats#shared() shared statistics}.
+   * 
+   * @param stats Where to record the outcome.
+   */
+  public void recordTo(GameStats stats) {
+    this.stats = stats;
+  }
+
+  /**
+   * @return The stream of the game's map for spectators.
+   */
+  public SpectatorFeed getSpectatorFeed() {
+    start();
+    return map.getSpectatorFeed();
+  }
+
+  /**
+   * @return Whether the game is played in a dungeon shared with other games.
+   */
+  public boolean isShared() {
+    return map instanceof SharedDungeon;
+  }
+
+  /**
+   * @return The map the game is played on.
+   */
+  public MapTemplate getTemplate() {
+    return template;
+  }
+
+  /**
+   * Sets the bot up to search the way the map asks.
+   */
+  private void prepareBot() {
+    bot.searchWith(template.getOptions().getSearchStrategy(), template.getLandmarks(), template.getPathCache());
+  }
+
+  /**
+   * Lets the bot plan routes across the whole map instead of only within its
+   * view.
+   */
+  public void roamWholeMap() {
+    start();
+    awaitPlan();
+    bot.navigateWith(template);
+  }
+
+  /**
+   * Takes the player and their bot off the map, for leaving a shared dungeon.
+   */
+  public void leave() {
+    if (map == null)
+      return;
+    awaitPlan();
+    map.removeAgent(player);
+    map.removeAgent(bot);
+  }
+
+  /**
+   * Plays a full turn: the player's command followed by the bot's action.
+   * 
+   * @param command The raw command from the player.
+   * @return The response to the player.
+   */
   public String executeMove(String command) {
+    String responseToPlayer = playerTurn(command);
+    if (responseToPlayer.equals(UNRECOGNISED))
+      return responseToPlayer;
+    botTurn();
+    return responseToPlayer;
+  }
+
+  /**
+   * Executes only the player's command, for games where the bot acts on a clock
+   * rather than after each command.
+   * 
+   * @param command The raw command from the player.
+   * @return The response to the player.
+   */
+  public String playerTurn(String command) {
     player.setNextAction(command);
     String responseToPlayer = executeCommand(player.getNextAction(), player);
     if (responseToPlayer.equals("Invalid"))
-      return "Command not recognised.";
-    String responseToBot = executeCommand(bot.getNextAction(), bot);
-    bot.takeInput(responseToBot);
+      return UNRECOGNISED;
+    turns++;
     return responseToPlayer;
   }
 
+  /**
+   * Lets the bot take its next action.
+   */
+  public void botTurn() {
+    // Until the player has needed the map, the bot has nowhere to be.
+    if (map == null)
+      return;
+    String responseToBot = executeCommand(nextBotAction(), bot);
+    bot.takeInput(responseToBot);
+    if (!isShared())
+      map.publishFrame();
+    if (planner != null) {
+      plannedFrom = new Point(bot.getLocation());
+      try {
+        plannedAction = CompletableFuture.supplyAsync(bot::getNextAction, planner);
+      } catch (RejectedExecutionException e) {
+        plannedAction = null;
+      }
+    }
+  }
+
+  /**
+   * Plans the bot's next action in the background as soon as each of its turns
+   * ends, so that the planning is done while waiting for the player.
+   * 
+   * @param planner The executor to plan on, or null to plan during each turn.
+   */
+  public void planAhead(Executor planner) {
+    awaitPlan();
+    this.planner = planner;
+  }
+
+  /**
+   * Takes the action planned in the background if it is still valid, otherwise
+   * has the bot look around again.
+   * 
+   * @return The bot's next action.
+   */
+  private Command nextBotAction() {
+    awaitPlan();
+    Command action = readyAction;
+    readyAction = null;
+    if (action == null)
+      return bot.getNextAction();
+    if (!bot.getLocation().equals(plannedFrom))
+      return bot.replan();
+    if (action.getVerb() == Verb.MOVE) {
+      Point next = step(bot.getLocation(), ((Move) action).getDirection());
+      char tile = map.getMap()[next.y][next.x];
+      if (!Map.isOpen(tile) || tile == 'B')
+        return bot.replan();
+    }
+    return action;
+  }
+
+  /**
+   * Waits for any background planning to finish, so that the bot can be used.
+   * The planned action is kept for the bot's next turn, or if planning failed,
+   * the bot's plans are dropped and it is to look around instead.
+   */
+  private void awaitPlan() {
+    if (plannedAction == null)
+      return;
+    try {
+      readyAction = plannedAction.join();
+    } catch (CompletionException e) {
+      readyAction = bot.replan();
+    } finally {
+      plannedAction = null;
+    }
+  }
+
   /**
    * Executes an {@link Agent agent's} {@link Command command} and returns the
    * string response.
@@ -54,8 +458,13 @@ public class RemoteGameLogic {
    * @return The string response from the execution of the command.
    */
   private String executeCommand(Command command, Agent agent) {
+    if (agent == player && player.isCaptured())
+      return quitGame();
     try {
-      switch (command.getVerb()) {
+      Verb verb = command.getVerb();
+      if (verb == Verb.PICKUP || verb == Verb.LOOK || verb == Verb.MOVE)
+        start();
+      switch (verb) {
         case HELLO:
           return hello();
         case GOLD:
@@ -77,41 +486,11 @@ public class RemoteGameLogic {
     }
   }
 
-  /**
-   * Randomly chooses a {@link Map map} for the player.
-   * 
-   * @return String The path to the map.
-   */
-  private String chooseMap() {
-    try {
-      URI uri = cl.getResource(MAPS_PATH).toURI();
-      Path path;
-      if (uri.getScheme().equals("jar")) {
-        FileSystem fs = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap());
-        path = fs.getPath(MAPS_PATH);
-      } else {
-        path = Paths.get(uri);
-      }
-      Stream<Path> walk = Files.walk(path, 1);
-
-      List<String> maps = walk.map(file -> file.getFileName().toString()).collect(Collectors.toList());
-      walk.close();
-
-      maps.removeIf(file -> !file.endsWith(".txt"));
-      if (maps.size() == 0)
-        throw new IOException("No maps found.");
-
-      return MAPS_PATH + "/" + maps.get(new Random().nextInt(maps.size()));
-    } catch (Exception e) {
-      return null;
-    }
-  }
-
   /**
    * @return Gold required to win.
    */
   protected String hello() {
-    return "Gold to win " + String.valueOf(map.getGoldRequired());
+    return "Gold to win " + String.valueOf(template.getGoldRequired());
   }
 
   /**
@@ -130,40 +509,40 @@ public class RemoteGameLogic {
    * @return A string indicating whether or not the move was successful.
    */
   protected String move(Direction d, Agent agent) {
-    Point current = agent.getLocation();
     try {
-      Point next;
-      switch (d) {
-        case N:
-          next = new Point(current.x, current.y - 1);
-          break;
-        case S:
-          next = new Point(current.x, current.y + 1);
-          break;
-        case E:
-          next = new Point(current.x + 1, current.y);
-          break;
-        case W:
-          next = new Point(current.x - 1, current.y);
-          break;
-        default:
-          throw new IllegalArgumentException("Direction must be cardinal");
-      }
-      if (map.open(next)) {
-        String response = map.moveAgent(next, agent);
-        if (response.equals("LOSE")) {
-          return quitGame();
-        } else {
-          return response;
-        }
+      Point next = step(agent.getLocation(), d);
+      String response = map.moveAgent(next, agent);
+      if (response.equals("LOSE")) {
+        // A bot catching a player in a shared dungeon need not end its own game.
+        return agent == player ? quitGame() : response;
       } else {
-        return "Illegal Move.";
+        return response;
       }
     } catch (IllegalArgumentException e) {
       return "Fail";
     }
   }
 
+  /**
+   * @param current The starting position.
+   * @param d       The direction of the movement.
+   * @return The position one square away in the given direction.
+   */
+  private static Point step(Point current, Direction d) {
+    switch (d) {
+      case N:
+        return new Point(current.x, current.y - 1);
+      case S:
+        return new Point(current.x, current.y + 1);
+      case E:
+        return new Point(current.x + 1, current.y);
+      case W:
+        return new Point(current.x - 1, current.y);
+      default:
+        throw new IllegalArgumentException("Direction must be cardinal");
+    }
+  }
+
   /**
    * Generates the view of a given {@link Agent agent} on the {@link Map map}.
    * 
@@ -172,21 +551,7 @@ public class RemoteGameLogic {
    *         agent.
    */
   protected String look(Agent agent) {
-    char[][] currentMap = map.getMap();
-    Point location = agent.getLocation();
-    StringBuilder view = new StringBuilder();
-    for (int y = location.y - 2; y <= location.y + 2; y++) {
-      for (int x = location.x - 2; x <= location.x + 2; x++) {
-        try {
-          view.append(currentMap[y][x]);
-        } catch (IndexOutOfBoundsException e) {
-          view.append('#');
-        }
-      }
-      view.append('\n');
-    }
-    view.deleteCharAt(view.length() - 1); // Remove terminating \n
-    return view.toString();
+    return map.look(agent.getLocation());
   }
 
   /**
@@ -196,18 +561,25 @@ public class RemoteGameLogic {
    * @return If the player successfully picked-up gold or not.
    */
   protected String pickup() {
-    if (player.getUnderneath() != 'G')
+    if (!map.pickup(player))
       return "Fail";
     player.addGold();
-    player.setUnderneath('.');
     return "Success " + gold();
   }
 
   /**
-   * Quits the game, shutting down the application.
+   * Quits the game, shutting down the application. The outcome is recorded to
+   * the game's {@link GameStats statistics} the first time, unless the game
+   * never started.
    */
   protected String quitGame() {
-    if (player.getGold() >= map.getGoldRequired() && player.getUnderneath() == 'E') {
+    boolean won = !player.isCaptured() && player.getGold() >= template.getGoldRequired()
+        && player.getUnderneath() == 'E';
+    if (!finished && map != null) {
+      finished = true;
+      stats.record(template.getMapName(), won, player.isCaptured(), player.getGold(), turns);
+    }
+    if (won) {
       return "WIN - You won the game!";
     } else {
       return "LOSE";
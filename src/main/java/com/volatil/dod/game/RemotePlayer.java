@@ -4,6 +4,11 @@ public class RemotePlayer extends Agent {
   /** The amount of gold the player has. */
   private int gold;
   private String nextAction;
+  /**
+   * Whether a bot has caught the player, which in a shared dungeon is set on
+   * the thread of the bot's game.
+   */
+  private volatile boolean captured;
 
   /** Default constructor. */
   public RemotePlayer() {
@@ -53,6 +58,18 @@ public class RemotePlayer extends Agent {
     gold += 1;
   }
 
+  /**
+   * @return Whether a bot has caught the player.
+   */
+  public boolean isCaptured() {
+    return captured;
+  }
+
+  /** Marks the player as caught by a bot. */
+  protected void capture() {
+    captured = true;
+  }
+
   public void setNextAction(String nextAction) {
     this.nextAction = nextAction;
   }
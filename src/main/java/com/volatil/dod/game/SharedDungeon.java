@@ -0,0 +1,174 @@
+package com.volatil.dod.game;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link Map map} played on by many games at once. The map is divided into
+ * square regions, each guarded by its own lock, so that agents in different
+ * regions move in parallel. Operations spanning several regions always take
+ * their locks in ascending order, so they cannot deadlock.
+ */
+public class SharedDungeon extends Map {
+  /** Side length of a region in squares. */
+  private final int regionSize;
+
+  /** The number of regions across the map. */
+  private final int columns;
+
+  /** The number of regions down the map. */
+  private final int rows;
+
+  /** One lock per region, in row-major order. */
+  private final ReentrantLock[] locks;
+
+  /**
+   * Default constructor.
+   *
+   * @param filename   The filename of the map file.
+   * @param regionSize Side length of a region in squares.
+   */
+  public SharedDungeon(String filename, int regionSize) {
+    super(filename);
+    if (regionSize <= 0)
+      throw new IllegalArgumentException("Region size must be positive");
+    char[][] map = getMap();
+    this.regionSize = regionSize;
+    this.columns = (map[0].length + regionSize - 1) / regionSize;
+    this.rows = (map.length + regionSize - 1) / regionSize;
+    this.locks = new ReentrantLock[columns * rows];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  @Override
+  protected boolean place(Point location, Agent agent) {
+    int[] held = lock(location);
+    try {
+      return super.place(location, agent);
+    } finally {
+      unlock(held);
+    }
+  }
+
+  @Override
+  public void removeAgent(Agent agent) {
+    int[] held = lock(agent.getLocation());
+    try {
+      super.removeAgent(agent);
+    } finally {
+      unlock(held);
+    }
+  }
+
+  @Override
+  public String moveAgent(Point next, Agent agent) {
+    int[] held = lock(agent.getLocation(), next);
+    try {
+      return super.moveAgent(next, agent);
+    } finally {
+      unlock(held);
+    }
+  }
+
+  @Override
+  public boolean pickup(Agent agent) {
+    int[] held = lock(agent.getLocation());
+    try {
+      return super.pickup(agent);
+    } finally {
+      unlock(held);
+    }
+  }
+
+  @Override
+  public String look(Point location) {
+    int[] held = lock(window(location, getTemplate().getFieldOfView().getRadius()));
+    try {
+      return super.look(location);
+    } finally {
+      unlock(held);
+    }
+  }
+
+  /**
+   * Takes every region's lock, in ascending order, so that no move is seen half
+   * made.
+   */
+  @Override
+  char[][] snapshot() {
+    for (ReentrantLock lock : locks) {
+      lock.lock();
+    }
+    try {
+      return super.snapshot();
+    } finally {
+      for (int i = locks.length - 1; i >= 0; i--) {
+        locks[i].unlock();
+      }
+    }
+  }
+
+  /**
+   * @param location The centre of a view.
+   * @param radius   How far the view reaches in each direction.
+   * @return Points of the view lying in every region it covers.
+   */
+  private Point[] window(Point location, int radius) {
+    // A point every region's width across the view, plus the far edge.
+    int across = 2 * radius / regionSize + 2;
+    Point[] points = new Point[across * across];
+    for (int i = 0; i < across; i++) {
+      for (int j = 0; j < across; j++) {
+        points[i * across + j] = new Point(Math.min(location.x - radius + i * regionSize, location.x + radius),
+            Math.min(location.y - radius + j * regionSize, location.y + radius));
+      }
+    }
+    return points;
+  }
+
+  /**
+   * @param p A point, which may lie beyond the edge of the map.
+   * @return The index of the nearest region to the point.
+   */
+  private int regionOf(Point p) {
+    int column = Math.min(Math.max(p.x, 0) / regionSize, columns - 1);
+    int row = Math.min(Math.max(p.y, 0) / regionSize, rows - 1);
+    return row * columns + column;
+  }
+
+  /**
+   * Locks every region containing the given points, in ascending order.
+   *
+   * @param points The points about to be read or written.
+   * @return The regions locked.
+   */
+  private int[] lock(Point... points) {
+    int[] regions = new int[points.length];
+    for (int i = 0; i < points.length; i++) {
+      regions[i] = regionOf(points[i]);
+    }
+    Arrays.sort(regions);
+    int distinct = 0;
+    for (int i = 0; i < regions.length; i++) {
+      if (i == 0 || regions[i] != regions[i - 1])
+        regions[distinct++] = regions[i];
+    }
+    regions = Arrays.copyOf(regions, distinct);
+    for (int region : regions) {
+      locks[region].lock();
+    }
+    return regions;
+  }
+
+  /**
+   * @param regions The regions to unlock.
+   */
+  private void unlock(int[] regions) {
+    for (int i = regions.length - 1; i >= 0; i--) {
+      locks[regions[i]].unlock();
+    }
+  }
+}
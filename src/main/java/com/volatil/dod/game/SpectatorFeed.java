@@ -0,0 +1,383 @@
+package com.volatil.dod.game;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A live stream of a {@link Map map} for spectators, a streaming version of
+ * {@link Map#debug()}. Once per turn the map's changes are encoded into a
+ * single {@link Frame frame}, shared by every subscriber without being copied.
+ * Most frames are deltas holding just the squares changed since the last, each
+ * written as the gap from the previous one followed by its tile. The map logs
+ * each square it writes while anyone is watching, so a delta reads only those
+ * squares, never the whole map. Every so often a keyframe holds a snapshot of
+ * the whole map instead. In a {@link SharedDungeon shared dungeon} a delta may
+ * catch a move half made, which the next frame puts right. A subscriber that
+ * falls so far behind that its queue fills drops what it has not read and
+ * skips ahead to the latest keyframe, or asks for the next frame to be a
+ * keyframe if the frames since the latest would not fit, so that slow
+ * spectators never hold up the game or make frames pile up.
+ * <p>
+ * A game publishes its map's feed after every turn of its bot. The feed of a
+ * {@link SharedDungeon shared dungeon} is published by whatever drives the
+ * dungeon's clock instead, so that it gets one frame per tick rather than one
+ * per game.
+ */
+public class SpectatorFeed {
+  /** Frames between keyframes used when none is given. */
+  public static final int DEFAULT_KEYFRAME_INTERVAL = 30;
+
+  /** The map being watched. */
+  private final Map map;
+
+  /** Frames from one keyframe to the next. */
+  private final int keyframeInterval;
+
+  /** Everyone watching. */
+  private final CopyOnWriteArrayList<Subscription> subscribers = new CopyOnWriteArrayList<Subscription>();
+
+  /** The latest keyframe and every frame since, for catching up. */
+  private final List<Frame> sinceKeyframe = new ArrayList<Frame>();
+
+  /** Squares written since the last frame, while changes are being recorded. */
+  private final ConcurrentLinkedQueue<Integer> changes = new ConcurrentLinkedQueue<Integer>();
+
+  /**
+   * Whether the map's changes are being recorded, from the first subscriber
+   * until a frame finds nobody watching.
+   */
+  private volatile boolean recording;
+
+  /** Whether a keyframe has been sent since changes began to be recorded. */
+  private boolean primed;
+
+  /** The number of frames published. */
+  private long published;
+
+  /** Whether a subscriber is waiting for a keyframe to catch up from. */
+  private volatile boolean keyframeWanted;
+
+  /**
+   * Default constructor.
+   *
+   * @param map              The map to watch.
+   * @param keyframeInterval Frames from one keyframe to the next.
+   */
+  public SpectatorFeed(Map map, int keyframeInterval) {
+    if (keyframeInterval < 1)
+      throw new IllegalArgumentException("Keyframe interval must be positive");
+    this.map = map;
+    this.keyframeInterval = keyframeInterval;
+  }
+
+  /**
+   * Starts watching.
+   *
+   * @param capacity The most frames that may wait to be read before the
+   *                 subscriber skips ahead.
+   * @return The subscription, starting from the latest keyframe.
+   */
+  public synchronized Subscription subscribe(int capacity) {
+    Subscription subscription = new Subscription(capacity);
+    recording = true;
+    subscription.catchUp(sinceKeyframe);
+    subscribers.add(subscription);
+    return subscription;
+  }
+
+  /**
+   * Notes that the map has written a square, to be sent in the next frame.
+   * Must be called after the square is written.
+   *
+   * @param cell The square, numbered row by row.
+   */
+  void record(int cell) {
+    if (recording)
+      changes.add(cell);
+  }
+
+  /**
+   * Sends the changes since the last turn to every subscriber, or a snapshot of
+   * the whole map if a keyframe is due. Stops recording changes if nobody is
+   * watching.
+   */
+  public synchronized void publish() {
+    if (subscribers.isEmpty()) {
+      // Without anyone watching the changes would only pile up.
+      recording = false;
+      primed = false;
+      changes.clear();
+      sinceKeyframe.clear();
+      return;
+    }
+    boolean keyframe = !primed || keyframeWanted || sinceKeyframe.size() >= keyframeInterval;
+    keyframeWanted = false;
+    // Drained before the map is read, so that no later change is missed.
+    int[] cells = drainChanges();
+    Frame frame = new Frame(published++, keyframe,
+        keyframe ? encodeKeyframe(map.snapshot()) : encodeDelta(cells, map.getMap()));
+    primed = true;
+    if (keyframe)
+      sinceKeyframe.clear();
+    sinceKeyframe.add(frame);
+    for (Subscription subscription : subscribers) {
+      subscription.offer(frame, sinceKeyframe);
+    }
+  }
+
+  /**
+   * @param tiles The map.
+   * @return Its height and width, then every tile row by row.
+   */
+  private static ByteBuffer encodeKeyframe(char[][] tiles) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(tiles.length * tiles[0].length + 8);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      MapCompiler.writeVarInt(out, tiles.length);
+      MapCompiler.writeVarInt(out, tiles[0].length);
+      for (char[] row : tiles) {
+        for (char tile : row) {
+          out.writeByte(tile);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+  }
+
+  /**
+   * @return The squares written since the last frame, in ascending order and
+   *         each only once.
+   */
+  private int[] drainChanges() {
+    int[] cells = new int[16];
+    int count = 0;
+    Integer cell;
+    while ((cell = changes.poll()) != null) {
+      if (count == cells.length)
+        cells = Arrays.copyOf(cells, count * 2);
+      cells[count++] = cell;
+    }
+    Arrays.sort(cells, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || cells[i] != cells[distinct - 1])
+        cells[distinct++] = cells[i];
+    }
+    return Arrays.copyOf(cells, distinct);
+  }
+
+  /**
+   * @param cells The squares written since the last frame, in ascending order.
+   * @param tiles The map, read only at those squares.
+   * @return The number of squares changed, then the gap from the previous and
+   *         the new tile of each.
+   */
+  private static ByteBuffer encodeDelta(int[] cells, char[][] tiles) {
+    int width = tiles[0].length;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + 3 * cells.length);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      MapCompiler.writeVarInt(out, cells.length);
+      int previous = 0;
+      for (int cell : cells) {
+        MapCompiler.writeVarInt(out, cell - previous);
+        out.writeByte(tiles[cell / width][cell % width]);
+        previous = cell;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+  }
+
+  /**
+   * @return The number of subscribers.
+   */
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  /** One turn of the map, encoded once for every subscriber. */
+  public static class Frame {
+    /** The frame's position in the feed. */
+    private final long sequence;
+    /** Whether the frame holds the whole map. */
+    private final boolean keyframe;
+    /** The encoded frame, shared by every subscriber. */
+    private final ByteBuffer data;
+
+    private Frame(long sequence, boolean keyframe, ByteBuffer data) {
+      this.sequence = sequence;
+      this.keyframe = keyframe;
+      this.data = data;
+    }
+
+    /**
+     * @return The frame's position in the feed.
+     */
+    public long getSequence() {
+      return sequence;
+    }
+
+    /**
+     * @return Whether the frame holds the whole map rather than changes.
+     */
+    public boolean isKeyframe() {
+      return keyframe;
+    }
+
+    /**
+     * @return A read-only view of the encoded frame, sharing its bytes.
+     */
+    public ByteBuffer getData() {
+      return data.duplicate();
+    }
+
+    /**
+     * Decodes the frame onto a spectator's copy of the map.
+     *
+     * @param tiles The spectator's copy, or null if it has none yet.
+     * @return The copy brought up to date, which is a new one for a keyframe.
+     * @throws IllegalStateException If given a delta with no copy to apply it
+     *                               to.
+     */
+    public char[][] applyTo(char[][] tiles) {
+      ByteBuffer in = getData();
+      if (keyframe) {
+        tiles = new char[readVarInt(in)][readVarInt(in)];
+        for (char[] row : tiles) {
+          for (int x = 0; x < row.length; x++) {
+            row[x] = (char) (in.get() & 0xFF);
+          }
+        }
+        return tiles;
+      }
+      if (tiles == null)
+        throw new IllegalStateException("A delta needs a keyframe to apply to");
+      int width = tiles[0].length, cell = 0;
+      for (int count = readVarInt(in); count > 0; count--) {
+        cell += readVarInt(in);
+        tiles[cell / width][cell % width] = (char) (in.get() & 0xFF);
+      }
+      return tiles;
+    }
+
+    /**
+     * @param in The frame being read.
+     * @return The integer written by {@link MapCompiler#writeVarInt}.
+     */
+    private static int readVarInt(ByteBuffer in) {
+      int value = 0;
+      for (int shift = 0;; shift += 7) {
+        byte b = in.get();
+        value |= (b & 0x7F) << shift;
+        if (b >= 0)
+          return value;
+      }
+    }
+  }
+
+  /** One spectator's place in the feed. */
+  public class Subscription implements AutoCloseable {
+    /** The most frames that may wait to be read. */
+    private final int capacity;
+    /** Frames waiting to be read. */
+    private final ArrayDeque<Frame> queue = new ArrayDeque<Frame>();
+    /** Whether frames are being dropped until the next keyframe. */
+    private boolean waitingForKeyframe;
+    /** The number of times the subscriber fell behind and skipped ahead. */
+    private long skips;
+
+    private Subscription(int capacity) {
+      if (capacity < 1)
+        throw new IllegalArgumentException("Capacity must be positive");
+      this.capacity = capacity;
+    }
+
+    /**
+     * Queues a new frame, skipping ahead if the queue is full.
+     *
+     * @param frame         The new frame.
+     * @param sinceKeyframe The latest keyframe and every frame since.
+     */
+    private synchronized void offer(Frame frame, List<Frame> sinceKeyframe) {
+      if (waitingForKeyframe && !frame.isKeyframe())
+        return;
+      waitingForKeyframe = false;
+      if (queue.size() < capacity) {
+        queue.add(frame);
+      } else {
+        skips++;
+        queue.clear();
+        catchUp(sinceKeyframe);
+      }
+      notifyAll();
+    }
+
+    /**
+     * Queues the latest keyframe and the frames since, or waits for the next
+     * keyframe if they do not fit.
+     *
+     * @param sinceKeyframe The latest keyframe and every frame since.
+     */
+    private synchronized void catchUp(List<Frame> sinceKeyframe) {
+      if (sinceKeyframe.size() > capacity) {
+        waitingForKeyframe = true;
+        keyframeWanted = true;
+      } else {
+        queue.addAll(sinceKeyframe);
+      }
+    }
+
+    /**
+     * @return The next frame, or null if none is waiting.
+     */
+    public synchronized Frame poll() {
+      return queue.poll();
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @param timeout How long to wait.
+     * @param unit    The unit of the timeout.
+     * @return The next frame, or null if none came in time.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (queue.isEmpty()) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0)
+          return null;
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return queue.poll();
+    }
+
+    /**
+     * @return The number of times the subscriber fell behind and skipped ahead.
+     */
+    public synchronized long getSkipCount() {
+      return skips;
+    }
+
+    /** Stops watching. */
+    @Override
+    public void close() {
+      subscribers.remove(this);
+    }
+  }
+}
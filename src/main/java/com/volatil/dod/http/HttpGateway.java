@@ -0,0 +1,214 @@
+package com.volatil.dod.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.volatil.dod.session.SessionRegistry;
+
+/**
+ * Plays sessions over HTTP, for clients that cannot speak anything else. Built
+ * on the JDK's own server, whose connections stay open between requests as
+ * every response here has a fixed length. Requests are handled on a bounded
+ * pool of threads; once its queue is full, the server's own thread handles
+ * the next request itself, which stops it accepting more until it is done.
+ * <p>
+ * Launch with {@code -Dsun.net.httpserver.nodelay=true}. Otherwise each
+ * response's body waits out the client's delayed acknowledgement of its
+ * headers, some 40ms a request. The JDK reads the property once, when the
+ * first server is created, so it cannot usefully be set from here.
+ * <ul>
+ * <li>{@code POST /sessions} starts a game, answering with the session's
+ * identifier.</li>
+ * <li>{@code POST /sessions/{id}} plays the command in the body, answering
+ * with the response to the player.</li>
+ * <li>{@code POST /sessions/{id}/batch} plays each line of the body as a
+ * command in turn, stopping early if the game ends. Each response is answered
+ * with a line giving how many lines it spans, followed by the response.</li>
+ * <li>{@code DELETE /sessions/{id}} ends the session.</li>
+ * </ul>
+ */
+public class HttpGateway implements AutoCloseable {
+  /** The path every endpoint is under. */
+  private static final String ROOT = "/sessions";
+
+  /** The most commands a batch may hold. */
+  public static final int MAX_BATCH = 64;
+
+  /** The longest request body read, in bytes. */
+  private static final int MAX_BODY = 64 * 1024;
+
+  /** The sessions played. */
+  private final SessionRegistry registry;
+
+  /** The server. */
+  private final HttpServer server;
+
+  /** Threads handling requests. */
+  private final ThreadPoolExecutor workers;
+
+  /**
+   * Default constructor.
+   *
+   * @param address       The address to listen on, whose port may be 0 for any
+   *                      free port.
+   * @param registry      The sessions played.
+   * @param threads       The number of threads handling requests.
+   * @param queueCapacity The most requests that may wait for a thread.
+   * @throws IOException If the address cannot be listened on.
+   */
+  public HttpGateway(InetSocketAddress address, SessionRegistry registry, int threads, int queueCapacity)
+      throws IOException {
+    if (threads <= 0 || queueCapacity <= 0)
+      throw new IllegalArgumentException("Thread count and queue capacity must be positive");
+    this.registry = registry;
+    AtomicInteger count = new AtomicInteger();
+    this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity), r -> {
+          Thread t = new Thread(r, "dod-http-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    this.server = HttpServer.create(address, 0);
+    server.createContext(ROOT, this::handle);
+    server.setExecutor(workers);
+  }
+
+  /** Starts serving requests. */
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * @return The port the gateway listens on.
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Routes a request to its endpoint.
+   *
+   * @param exchange The request and its response.
+   * @throws IOException If the connection fails.
+   */
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      // "/sessions" gives no parts, and "/sessions/{id}" an empty one then the id.
+      String[] path = exchange.getRequestURI().getPath().substring(ROOT.length()).split("/");
+      String method = exchange.getRequestMethod();
+      String body = readBody(exchange);
+      if (body == null) {
+        // The rest of the body is left unread, so the connection cannot be kept.
+        exchange.getResponseHeaders().set("Connection", "close");
+        respond(exchange, 413, "Request body too large.");
+      } else if ((path.length == 0 || path.length == 1 && path[0].isEmpty()) && method.equals("POST")) {
+        respond(exchange, 201, registry.open());
+      } else if (path.length == 2 && method.equals("POST")) {
+        String response = registry.execute(path[1], body.trim());
+        if (response == null)
+          respond(exchange, 404, "No such session.");
+        else
+          respond(exchange, 200, response);
+      } else if (path.length == 3 && path[2].equals("batch") && method.equals("POST")) {
+        batch(exchange, path[1], body);
+      } else if (path.length == 2 && method.equals("DELETE")) {
+        registry.close(path[1]);
+        exchange.sendResponseHeaders(204, -1);
+      } else {
+        respond(exchange, 404, "No such endpoint.");
+      }
+    } catch (RuntimeException e) {
+      System.err.println("Request failed: " + e.getMessage());
+      if (exchange.getResponseCode() == -1)
+        respond(exchange, 500, "Internal error.");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Plays several commands of a session in turn.
+   *
+   * @param exchange The request and its response.
+   * @param id       The session's identifier.
+   * @param body     The commands, one per line.
+   * @throws IOException If the connection fails.
+   */
+  private void batch(HttpExchange exchange, String id, String body) throws IOException {
+    String[] commands = body.split("\r?\n");
+    if (commands.length > MAX_BATCH) {
+      respond(exchange, 413, "A batch may hold at most " + MAX_BATCH + " commands.");
+      return;
+    }
+    StringBuilder responses = new StringBuilder();
+    for (String command : commands) {
+      if (command.trim().isEmpty())
+        continue;
+      String response = registry.execute(id, command.trim());
+      if (response == null) {
+        if (responses.length() == 0) {
+          respond(exchange, 404, "No such session.");
+          return;
+        }
+        // The game ended partway through the batch.
+        break;
+      }
+      responses.append(response.split("\n", -1).length).append('\n').append(response).append('\n');
+    }
+    respond(exchange, 200, responses.toString());
+  }
+
+  /**
+   * Reads the whole body, which the connection must be drained of to be kept
+   * open. A body too long is read no further than the limit.
+   *
+   * @param exchange The request.
+   * @return The body, or null if it is too long.
+   * @throws IOException If the connection fails.
+   */
+  private static String readBody(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    InputStream in = exchange.getRequestBody();
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      if (body.size() + read > MAX_BODY)
+        return null;
+      body.write(buffer, 0, read);
+    }
+    in.close();
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param exchange The request and its response.
+   * @param status   The status code.
+   * @param text     The body of the response.
+   * @throws IOException If the connection fails.
+   */
+  private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /** Stops serving, letting requests being handled finish. */
+  @Override
+  public void close() {
+    server.stop(1);
+    workers.shutdown();
+  }
+}
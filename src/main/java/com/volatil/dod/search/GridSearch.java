@@ -0,0 +1,383 @@
+package com.volatil.dod.search;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.volatil.dod.game.BotPlayer;
+import com.volatil.dod.game.Direction;
+
+/**
+ * Best-first search over a grid with four-way movement at uniform cost, guided
+ * by the manhattan distance to the goal. Subclasses decide which nodes follow
+ * from each one expanded. Searches may be run under a {@link PlanningBudget},
+ * in which case the state of an unfinished search is kept so that it can be
+ * resumed by the next call.
+ */
+public abstract class GridSearch {
+  /** Version of the agent's view exclusively for searching. */
+  protected final SearchMap map;
+  /** The position of the agent's origin relative to the {@link SearchMap}. */
+  private final Point origin;
+  /**
+   * The position of the agent's goal relative to the search {@link SearchMap}.
+   */
+  protected final Point goal;
+  /** Offset from absolute coordinates to those of the {@link SearchMap}. */
+  private final Point offset;
+  /** Nodes discovered but not yet expanded, null until the search starts. */
+  private PriorityQueue<Point> frontier;
+  /** The node closest to the goal found so far. */
+  private Point best;
+  /** The goal node once it has been reached. */
+  private Point found;
+  /** The number of nodes expanded so far. */
+  private int expandedCount;
+  /** Distances to landmarks that sharpen the heuristic, or null if there are none. */
+  private Landmarks landmarks;
+  /** The comparator used for ordering the PriorityQueue of the frontier. */
+  private Comparator<Point> scoreComparator = new Comparator<Point>() {
+    @Override
+    public int compare(Point a, Point b) {
+      SearchNode aNode = map.get(a);
+      SearchNode bNode = map.get(b);
+      return Double.compare(aNode.getTotalCost(), bNode.getTotalCost());
+    }
+  };
+
+  /**
+   * Constructor for searching a {@link BotPlayer bot's} view.
+   *
+   * @param b The {@link BotPlayer bot} that is searching for a path to its goal.
+   */
+  protected GridSearch(BotPlayer b) {
+    Point current = b.getLocation(), goal = b.getGoal();
+    this.map = new SearchMap(b);
+
+    // Needed to translate the goal to its absolute position.
+    int r = b.getViewRadius();
+    int xOffset = -current.x + r;
+    int yOffset = -current.y + r;
+
+    this.offset = new Point(xOffset, yOffset);
+    this.goal = new Point(goal.x + xOffset, goal.y + yOffset);
+    this.origin = new Point(r, r);
+  }
+
+  /**
+   * Constructor for searching any grid of tiles, whose coordinates are then
+   * the absolute ones.
+   *
+   * @param tiles  The tiles to search, in which walls and hidden squares block
+   *               movement.
+   * @param origin The starting point.
+   * @param goal   The point to find a path to.
+   */
+  protected GridSearch(char[][] tiles, Point origin, Point goal) {
+    this.map = new SearchMap(tiles, goal);
+    this.offset = new Point(0, 0);
+    this.goal = new Point(goal);
+    this.origin = new Point(origin);
+  }
+
+  /**
+   * Adds the nodes that follow from one being expanded to the frontier.
+   *
+   * @param current The node being expanded.
+   */
+  protected abstract void expand(Point current);
+
+  /**
+   * Guides the search with the ALT heuristic as well as the manhattan distance.
+   * Must be called before the search starts.
+   *
+   * @param landmarks Distances to landmarks of the map being searched, in
+   *                  absolute coordinates.
+   */
+  public void guideWith(Landmarks landmarks) {
+    this.landmarks = landmarks;
+  }
+
+  /**
+   * @return Whether the search has either reached the goal or proven that it is
+   *         unreachable.
+   */
+  public boolean isComplete() {
+    return frontier != null && (found != null || frontier.isEmpty());
+  }
+
+  /**
+   * @return The number of nodes expanded so far.
+   */
+  public int getExpandedCount() {
+    return expandedCount;
+  }
+
+  /**
+   * Generates the path needed to travel from the origin to the current point.
+   *
+   * @param current The coordinates of the current point.
+   * @return The directions that the agent needs to take in order to reach the
+   *         target.
+   * @see Direction
+   */
+  public Path reconstructPath(Point current) {
+    Path path = new Path();
+    pathBetween(origin, current, path);
+    return path;
+  }
+
+  /**
+   * @param node A square reached by the search.
+   * @return The neighbouring square it was reached from, or null for the
+   *         origin.
+   */
+  protected Point parentOf(Point node) {
+    return map.get(node).getPrevious();
+  }
+
+  /**
+   * Generates the path between two nodes already reached by the search, going
+   * back up the search tree as far as their closest common ancestor.
+   *
+   * @param from The coordinates of the starting node.
+   * @param to   The coordinates of the final node.
+   * @param into Where to put the directions leading from one node to the
+   *             other, which are none if they are not connected.
+   */
+  private void pathBetween(Point from, Point to, Path into) {
+    into.clear();
+    // Every ancestor of the starting node, including itself.
+    HashMap<Point, Integer> ancestors = new HashMap<Point, Integer>();
+    List<Point> up = new ArrayList<Point>();
+    for (Point p = from; p != null && map.get(p) != null; p = parentOf(p)) {
+      ancestors.put(p, up.size());
+      up.add(p);
+    }
+
+    // Climbs from the final node until meeting the starting node's ancestors.
+    List<Point> down = new ArrayList<Point>();
+    Point p = to;
+    while (p != null && !ancestors.containsKey(p)) {
+      down.add(p);
+      p = parentOf(p);
+    }
+    if (p == null)
+      return;
+
+    for (int i = 0; i < ancestors.get(p); i++) {
+      into.add(determineDirection(up.get(i + 1), up.get(i)));
+    }
+    Point previous = p;
+    for (int i = down.size() - 1; i >= 0; i--) {
+      into.add(determineDirection(down.get(i), previous));
+      previous = down.get(i);
+    }
+  }
+
+  /**
+   * Finds the first step of the path between two nodes already reached by the
+   * search, without generating the rest of it.
+   *
+   * @param from The coordinates of the starting node.
+   * @param to   The coordinates of the final node.
+   * @return The first step, or null if the nodes are the same or not
+   *         connected.
+   */
+  private Direction firstStep(Point from, Point to) {
+    if (map.get(from) == null)
+      return null;
+    // Leads down the search tree if the final node descends from the start.
+    Point child = null;
+    for (Point p = to; p != null; p = parentOf(p)) {
+      if (p.equals(from))
+        return child == null ? null : determineDirection(child, from);
+      child = p;
+    }
+    // Otherwise leads up towards their common ancestor, the origin at worst.
+    Point parent = parentOf(from);
+    return parent == null ? null : determineDirection(parent, from);
+  }
+
+  /**
+   * Calculates the direction needed to move between two adjacent nodes.
+   *
+   * @param current  The current node.
+   * @param previous The previous node.
+   * @return The direction taken to move from previous to current.
+   * @see Direction
+   */
+  private Direction determineDirection(Point current, Point previous) {
+    if (previous.y - 1 == current.y) {
+      return Direction.N;
+    } else if (previous.y + 1 == current.y) {
+      return Direction.S;
+    } else if (previous.x + 1 == current.x) {
+      return Direction.E;
+    } else if (previous.x - 1 == current.x) {
+      return Direction.W;
+    } else {
+      throw new IllegalArgumentException("Points are not adjacent.");
+    }
+  }
+
+  /**
+   * Searches until the goal is found or shown to be unreachable.
+   *
+   * @return The path through the map to get to the goal, which is empty if the
+   *         path does not exist.
+   */
+  public Path search() {
+    Path path = new Path();
+    Point target = advance(PlanningBudget.UNBOUNDED, true);
+    if (target != null)
+      pathBetween(origin, target, path);
+    return path;
+  }
+
+  /**
+   * Anytime version of the search, resuming from wherever the last call stopped
+   * until either the search completes or the budget runs out.
+   *
+   * @param budget   The work this call is allowed to do.
+   * @param location The absolute position of the agent, which must lie on a path
+   *                 previously returned by this search.
+   * @return The path from the agent to the goal if the search is complete,
+   *         otherwise the path to the most promising node found so far.
+   */
+  public Path search(PlanningBudget budget, Point location) {
+    return search(budget, location, new Path());
+  }
+
+  /**
+   * Anytime version of the search that reuses a path rather than creating one.
+   *
+   * @param budget   The work this call is allowed to do.
+   * @param location The absolute position of the agent, which must lie on a path
+   *                 previously returned by this search.
+   * @param into     The path to fill in, whose steps are replaced.
+   * @return The path given, leading from the agent to the goal if the search is
+   *         complete, otherwise to the most promising node found so far.
+   */
+  public Path search(PlanningBudget budget, Point location, Path into) {
+    Point target = advance(budget, false);
+    if (target == null)
+      into.clear();
+    else
+      pathBetween(relative(location), target, into);
+    return into;
+  }
+
+  /**
+   * Anytime search for only the next step to take, which spares generating a
+   * path that is likely to be planned again before it is walked.
+   *
+   * @param budget   The work this call is allowed to do.
+   * @param location The absolute position of the agent, which must lie on a path
+   *                 previously returned by this search.
+   * @return The first step towards the goal if the search is complete,
+   *         otherwise towards the most promising node found so far, or null if
+   *         there is none.
+   */
+  public Direction nextStep(PlanningBudget budget, Point location) {
+    Point target = advance(budget, false);
+    return target == null ? null : firstStep(relative(location), target);
+  }
+
+  /**
+   * @param location An absolute position.
+   * @return The position in the coordinates of the {@link SearchMap}.
+   */
+  private Point relative(Point location) {
+    return new Point(location.x + offset.x, location.y + offset.y);
+  }
+
+  /**
+   * @param budget   The work this call is allowed to do.
+   * @param complete Whether only the goal will do as the end of a path.
+   * @return The node a path should lead to, or null if there is none.
+   */
+  private Point advance(PlanningBudget budget, boolean complete) {
+    if (frontier == null) {
+      // Initialisation of the origin.
+      frontier = new PriorityQueue<Point>(scoreComparator);
+      map.updatePathCost(origin, 0);
+      map.updateTotalCost(origin, computeHeuristic(origin));
+      frontier.add(origin);
+      best = origin;
+    }
+
+    long start = System.nanoTime();
+    int expanded = 0;
+    while (found == null && !frontier.isEmpty() && !budget.isExhausted(start, expanded)) {
+      Point current = frontier.poll();
+      expanded++;
+      expandedCount++;
+      if (map.get(current).isGoal()) {
+        found = current;
+        break;
+      }
+      if (computeHeuristic(current) < computeHeuristic(best))
+        best = current;
+      expand(current);
+    }
+
+    if (found != null)
+      return found;
+    // If there is no path to the goal.
+    if (complete || frontier.isEmpty())
+      return null;
+    return best;
+  }
+
+  /**
+   * Records a new way of reaching a node, adding it to the frontier if it is
+   * cheaper than any found before.
+   *
+   * @param node   The node reached.
+   * @param parent The node it is reached from, in a straight line.
+   */
+  protected void relax(Point node, Point parent) {
+    double tentativeCost = map.get(parent).getPathCost() + score(parent, node);
+    if (tentativeCost >= map.get(node).getPathCost())
+      return;
+    map.updateNodeParent(node, parent);
+    map.updatePathCost(node, tentativeCost);
+    // Re-inserted so that the frontier sees the lower cost.
+    frontier.remove(node);
+    map.updateTotalCost(node, tentativeCost + computeHeuristic(node));
+    frontier.add(node);
+  }
+
+  /**
+   * Computes the manhattan distance between two points.
+   *
+   * @param a A point in 2D space.
+   * @param b Another point in 2D space.
+   * @return The manhattan distance from a to b.
+   * @see <a href="https://en.wikipedia.org/wiki/Taxicab_geometry">Manhattan
+   *      Distance</a>
+   */
+  protected static int score(Point a, Point b) {
+    return Math.abs(a.x - b.x) + Math.abs(a.y - b.y);
+  }
+
+  /**
+   * Estimates the distance between any node and the goal node, never
+   * overestimating it.
+   *
+   * @param current The node from which the distance is calculated.
+   * @return The manhattan distance between the current node and the goal, or
+   *         the landmarks' estimate if that is greater.
+   */
+  protected int computeHeuristic(Point current) {
+    int estimate = score(current, goal);
+    if (landmarks != null)
+      estimate = Math.max(estimate,
+          landmarks.estimate(current.x - offset.x, current.y - offset.y, goal.x - offset.x, goal.y - offset.y));
+    return estimate;
+  }
+}
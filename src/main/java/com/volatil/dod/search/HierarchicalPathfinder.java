@@ -0,0 +1,462 @@
+package com.volatil.dod.search;
+
+import java.awt.Point;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.volatil.dod.game.Direction;
+
+/**
+ * Hierarchical path-finding A* (HPA*) across a whole map. The map is divided
+ * into square clusters and an abstract graph is built once, linking the
+ * entrances between neighbouring clusters to each other and to every entrance
+ * of the same cluster they can reach. Queries search the abstract graph and
+ * then refine each abstract edge inside a single cluster, so their cost grows
+ * with the number of clusters rather than the number of squares.
+ *
+ * @see <a href="https://webdocs.cs.ualberta.ca/~mmueller/ps/hpastar.pdf">Near
+ *      Optimal Hierarchical Path-Finding</a>
+ */
+public class HierarchicalPathfinder {
+  /** Entrances longer than this get a transition at each end. */
+  private static final int MAX_SINGLE_ENTRANCE = 6;
+
+  /** Width of the map. */
+  private final int width;
+  /** Height of the map. */
+  private final int height;
+  /** Whether each square, indexed by {@code y * width + x}, can be walked on. */
+  private final boolean[] open;
+  /** Side length of a cluster in squares. */
+  private final int clusterSize;
+  /** The number of clusters across the map. */
+  private final int clustersAcross;
+
+  /** The square of each abstract node. */
+  private int[] nodeCell = new int[16];
+  /** The number of abstract nodes. */
+  private int nodes;
+  /** The abstract node of each square holding one. */
+  private final HashMap<Integer, Integer> nodeAt = new HashMap<Integer, Integer>();
+  /** Edges of each abstract node, as pairs of neighbour and cost. */
+  private final List<List<int[]>> edges = new ArrayList<List<int[]>>();
+  /** Abstract nodes of each cluster. */
+  private final List<List<Integer>> clusterNodes = new ArrayList<List<Integer>>();
+
+  /**
+   * Builds the abstract graph of a map.
+   *
+   * @param map         The map, in which only '#' blocks movement.
+   * @param clusterSize Side length of a cluster in squares.
+   */
+  public HierarchicalPathfinder(char[][] map, int clusterSize) {
+    if (clusterSize < 2)
+      throw new IllegalArgumentException("Clusters must be at least 2 squares across");
+    this.height = map.length;
+    this.width = map[0].length;
+    this.clusterSize = clusterSize;
+    this.clustersAcross = (width + clusterSize - 1) / clusterSize;
+    int clustersDown = (height + clusterSize - 1) / clusterSize;
+    this.open = new boolean[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        open[y * width + x] = map[y][x] != '#';
+      }
+    }
+    for (int c = 0; c < clustersAcross * clustersDown; c++) {
+      clusterNodes.add(new ArrayList<Integer>());
+    }
+
+    // Entrances along each vertical and horizontal border between clusters.
+    for (int border = clusterSize; border < width; border += clusterSize) {
+      for (int start = 0; start < height; start += clusterSize) {
+        addEntrances(border - 1, start, 0, 1, 1, 0, Math.min(clusterSize, height - start));
+      }
+    }
+    for (int border = clusterSize; border < height; border += clusterSize) {
+      for (int start = 0; start < width; start += clusterSize) {
+        addEntrances(start, border - 1, 1, 0, 0, 1, Math.min(clusterSize, width - start));
+      }
+    }
+
+    // Links the entrances of each cluster that can reach each other.
+    for (int node = 0; node < nodes; node++) {
+      int[] distance = bfs(nodeCell[node])[0];
+      Bounds bounds = boundsOf(nodeCell[node]);
+      for (int other : clusterNodes.get(clusterOf(nodeCell[node]))) {
+        int d = distance[bounds.local(nodeCell[other])];
+        if (other != node && d >= 0)
+          edges.get(node).add(new int[] { other, d });
+      }
+    }
+  }
+
+  /**
+   * Finds the entrances along part of a border and adds their transitions.
+   *
+   * @param x       The x-coordinate of the first square on the near side.
+   * @param y       The y-coordinate of the first square on the near side.
+   * @param dx      The step along the border in x.
+   * @param dy      The step along the border in y.
+   * @param acrossX The offset to the far side in x.
+   * @param acrossY The offset to the far side in y.
+   * @param length  The number of squares along this part of the border.
+   */
+  private void addEntrances(int x, int y, int dx, int dy, int acrossX, int acrossY, int length) {
+    int runStart = -1;
+    for (int i = 0; i <= length; i++) {
+      boolean passable = i < length && open[(y + dy * i) * width + x + dx * i]
+          && open[(y + dy * i + acrossY) * width + x + dx * i + acrossX];
+      if (passable && runStart < 0) {
+        runStart = i;
+      } else if (!passable && runStart >= 0) {
+        int runEnd = i - 1;
+        if (runEnd - runStart + 1 < MAX_SINGLE_ENTRANCE) {
+          addTransition(x, y, dx, dy, acrossX, acrossY, (runStart + runEnd) / 2);
+        } else {
+          addTransition(x, y, dx, dy, acrossX, acrossY, runStart);
+          addTransition(x, y, dx, dy, acrossX, acrossY, runEnd);
+        }
+        runStart = -1;
+      }
+    }
+  }
+
+  private void addTransition(int x, int y, int dx, int dy, int acrossX, int acrossY, int i) {
+    int near = (y + dy * i) * width + x + dx * i;
+    int far = near + acrossY * width + acrossX;
+    int a = nodeFor(near), b = nodeFor(far);
+    edges.get(a).add(new int[] { b, 1 });
+    edges.get(b).add(new int[] { a, 1 });
+  }
+
+  /**
+   * @param cell A square holding an entrance.
+   * @return The abstract node of the square, created if needed.
+   */
+  private int nodeFor(int cell) {
+    Integer existing = nodeAt.get(cell);
+    if (existing != null)
+      return existing;
+    if (nodes == nodeCell.length)
+      nodeCell = Arrays.copyOf(nodeCell, nodes * 2);
+    nodeCell[nodes] = cell;
+    nodeAt.put(cell, nodes);
+    edges.add(new ArrayList<int[]>());
+    clusterNodes.get(clusterOf(cell)).add(nodes);
+    return nodes++;
+  }
+
+  /**
+   * @return The number of entrances in the abstract graph.
+   */
+  public int getAbstractNodeCount() {
+    return nodes;
+  }
+
+  /**
+   * Finds a path between two squares anywhere on the map.
+   *
+   * @param start The starting square.
+   * @param goal  The target square.
+   * @return The directions to take, which are none if there is no path.
+   */
+  public Path findPath(Point start, Point goal) {
+    return findPath(start, goal, new Path());
+  }
+
+  /**
+   * Finds a path between two squares anywhere on the map, reusing a path
+   * rather than creating one.
+   *
+   * @param start The starting square.
+   * @param goal  The target square.
+   * @param into  The path to fill in, whose steps are replaced.
+   * @return The path given, which is left empty if there is no path.
+   */
+  public Path findPath(Point start, Point goal, Path into) {
+    into.clear();
+    if (!isOpen(start) || !isOpen(goal) || start.equals(goal))
+      return into;
+    int from = start.y * width + start.x, to = goal.y * width + goal.x;
+    if (clusterOf(from) == clusterOf(to) && refine(from, to, into))
+      return into;
+
+    List<Integer> cells = route(from, to);
+    if (cells == null)
+      return into;
+    for (int i = 1; i < cells.size(); i++) {
+      int a = cells.get(i - 1), b = cells.get(i);
+      if (a == b)
+        continue;
+      if (clusterOf(a) == clusterOf(b))
+        refine(a, b, into);
+      else
+        into.add(direction(a, b));
+    }
+    return into;
+  }
+
+  /**
+   * Finds only the first step of a path between two squares anywhere on the
+   * map. The route across the abstract graph is still found, but only the edge
+   * leaving the start is refined into squares.
+   *
+   * @param start The starting square.
+   * @param goal  The target square.
+   * @return The first step, or null if there is no path.
+   */
+  public Direction nextStep(Point start, Point goal) {
+    if (!isOpen(start) || !isOpen(goal) || start.equals(goal))
+      return null;
+    int from = start.y * width + start.x, to = goal.y * width + goal.x;
+    if (clusterOf(from) == clusterOf(to)) {
+      Direction step = firstStep(from, to);
+      if (step != null)
+        return step;
+    }
+
+    List<Integer> cells = route(from, to);
+    if (cells == null)
+      return null;
+    for (int i = 1; i < cells.size(); i++) {
+      int a = cells.get(i - 1), b = cells.get(i);
+      if (a != b)
+        return clusterOf(a) == clusterOf(b) ? firstStep(a, b) : direction(a, b);
+    }
+    return null;
+  }
+
+  /**
+   * A* over the abstract graph, with the start and goal temporarily connected
+   * to their clusters' entrances.
+   *
+   * @param from The starting square.
+   * @param to   The target square.
+   * @return The squares of the abstract nodes passed through, from the start to
+   *         the goal, or null if there is no path.
+   */
+  private List<Integer> route(int from, int to) {
+    int startNode = nodes, goalNode = nodes + 1;
+    List<int[]> startEdges = temporaryEdges(from);
+    HashMap<Integer, Integer> toGoal = new HashMap<Integer, Integer>();
+    for (int[] edge : temporaryEdges(to)) {
+      toGoal.put(edge[0], edge[1]);
+    }
+
+    int[] cost = new int[nodes + 2];
+    int[] parent = new int[nodes + 2];
+    Arrays.fill(cost, Integer.MAX_VALUE);
+    Arrays.fill(parent, -1);
+    PriorityQueue<int[]> frontier = new PriorityQueue<int[]>((a, b) -> Integer.compare(a[1], b[1]));
+    cost[startNode] = 0;
+    frontier.add(new int[] { startNode, distance(from, to) });
+    while (!frontier.isEmpty()) {
+      int[] entry = frontier.poll();
+      int node = entry[0];
+      if (node == goalNode)
+        break;
+      if (entry[1] > cost[node] + distance(cellOf(node, from, to), to))
+        continue;
+      List<int[]> neighbours = node == startNode ? startEdges : edges.get(node);
+      for (int[] edge : neighbours) {
+        relax(node, edge[0], edge[1], cost, parent, frontier, from, to);
+      }
+      Integer last = toGoal.get(node);
+      if (last != null)
+        relax(node, goalNode, last, cost, parent, frontier, from, to);
+    }
+    if (parent[goalNode] < 0)
+      return null;
+
+    List<Integer> cells = new ArrayList<Integer>();
+    for (int node = goalNode; node >= 0; node = parent[node]) {
+      cells.add(cellOf(node, from, to));
+    }
+    Collections.reverse(cells);
+    return cells;
+  }
+
+  private void relax(int node, int next, int edgeCost, int[] cost, int[] parent, PriorityQueue<int[]> frontier,
+      int from, int to) {
+    int tentative = cost[node] + edgeCost;
+    if (tentative < cost[next]) {
+      cost[next] = tentative;
+      parent[next] = node;
+      frontier.add(new int[] { next, tentative + distance(cellOf(next, from, to), to) });
+    }
+  }
+
+  /**
+   * @param node An abstract node, including the temporary start and goal nodes.
+   * @param from The square of the start node.
+   * @param to   The square of the goal node.
+   * @return The square of the node.
+   */
+  private int cellOf(int node, int from, int to) {
+    return node == nodes ? from : node == nodes + 1 ? to : nodeCell[node];
+  }
+
+  /**
+   * @param cell A square, which may not hold an entrance.
+   * @return Edges from the square to every entrance of its cluster it can reach.
+   */
+  private List<int[]> temporaryEdges(int cell) {
+    List<int[]> found = new ArrayList<int[]>();
+    int[] distance = bfs(cell)[0];
+    Bounds bounds = boundsOf(cell);
+    for (int node : clusterNodes.get(clusterOf(cell))) {
+      int d = distance[bounds.local(nodeCell[node])];
+      if (d >= 0)
+        found.add(new int[] { node, d });
+    }
+    return found;
+  }
+
+  /**
+   * Finds the shortest path between two squares without leaving their cluster.
+   *
+   * @param from The starting square.
+   * @param to   The target square, in the same cluster.
+   * @param into The path to add the steps to.
+   * @return Whether there is a path inside the cluster, none being added if
+   *         not.
+   */
+  private boolean refine(int from, int to, Path into) {
+    int[][] search = bfs(from);
+    Bounds bounds = boundsOf(from);
+    int length = search[0][bounds.local(to)];
+    if (length < 0)
+      return false;
+    // Walks back from the target, filling in the steps from the last.
+    into.extend(length);
+    int index = into.size();
+    for (int cell = to; cell != from;) {
+      int previous = bounds.global(search[1][bounds.local(cell)]);
+      into.set(--index, direction(previous, cell));
+      cell = previous;
+    }
+    return true;
+  }
+
+  /**
+   * Finds the first step of the shortest path between two squares without
+   * leaving their cluster, searching back from the target so that the step is
+   * simply the starting square's parent.
+   *
+   * @param from The starting square.
+   * @param to   The target square, in the same cluster.
+   * @return The first step, or null if there is no path inside the cluster.
+   */
+  private Direction firstStep(int from, int to) {
+    int[][] search = bfs(to);
+    Bounds bounds = boundsOf(to);
+    if (search[0][bounds.local(from)] < 0)
+      return null;
+    return direction(from, bounds.global(search[1][bounds.local(from)]));
+  }
+
+  /**
+   * Breadth-first search from a square, confined to its cluster.
+   *
+   * @param from The starting square.
+   * @return The distance to and the parent of every square of the cluster,
+   *         indexed locally, with -1 for those that cannot be reached.
+   */
+  private int[][] bfs(int from) {
+    Bounds bounds = boundsOf(from);
+    int[] distance = new int[bounds.area()];
+    int[] parent = new int[bounds.area()];
+    Arrays.fill(distance, -1);
+    ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+    distance[bounds.local(from)] = 0;
+    parent[bounds.local(from)] = bounds.local(from);
+    queue.add(from);
+    while (!queue.isEmpty()) {
+      int cell = queue.poll();
+      int x = cell % width, y = cell / width;
+      int[][] moves = { { 0, -1 }, { 0, 1 }, { 1, 0 }, { -1, 0 } };
+      for (int[] move : moves) {
+        int nx = x + move[0], ny = y + move[1];
+        if (!bounds.contains(nx, ny) || !open[ny * width + nx])
+          continue;
+        int next = ny * width + nx;
+        if (distance[bounds.local(next)] >= 0)
+          continue;
+        distance[bounds.local(next)] = distance[bounds.local(cell)] + 1;
+        parent[bounds.local(next)] = bounds.local(cell);
+        queue.add(next);
+      }
+    }
+    return new int[][] { distance, parent };
+  }
+
+  private boolean isOpen(Point p) {
+    return p.x >= 0 && p.y >= 0 && p.x < width && p.y < height && open[p.y * width + p.x];
+  }
+
+  private int clusterOf(int cell) {
+    return (cell / width / clusterSize) * clustersAcross + (cell % width) / clusterSize;
+  }
+
+  private Bounds boundsOf(int cell) {
+    int x0 = (cell % width) / clusterSize * clusterSize, y0 = (cell / width) / clusterSize * clusterSize;
+    return new Bounds(x0, y0, Math.min(x0 + clusterSize, width), Math.min(y0 + clusterSize, height));
+  }
+
+  private int distance(int a, int b) {
+    return Math.abs(a % width - b % width) + Math.abs(a / width - b / width);
+  }
+
+  /**
+   * @param from A square.
+   * @param to   A neighbouring square.
+   * @return The direction taken to move from one to the other.
+   */
+  private Direction direction(int from, int to) {
+    if (to == from - width) {
+      return Direction.N;
+    } else if (to == from + width) {
+      return Direction.S;
+    } else if (to == from + 1) {
+      return Direction.E;
+    } else if (to == from - 1) {
+      return Direction.W;
+    } else {
+      throw new IllegalArgumentException("Squares are not adjacent.");
+    }
+  }
+
+  /** The squares of one cluster. */
+  private class Bounds {
+    private final int x0, y0, x1, y1;
+
+    private Bounds(int x0, int y0, int x1, int y1) {
+      this.x0 = x0;
+      this.y0 = y0;
+      this.x1 = x1;
+      this.y1 = y1;
+    }
+
+    private boolean contains(int x, int y) {
+      return x >= x0 && y >= y0 && x < x1 && y < y1;
+    }
+
+    private int area() {
+      return (x1 - x0) * (y1 - y0);
+    }
+
+    private int local(int cell) {
+      return (cell / width - y0) * (x1 - x0) + cell % width - x0;
+    }
+
+    private int global(int local) {
+      return (y0 + local / (x1 - x0)) * width + x0 + local % (x1 - x0);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.volatil.dod.search;
+
+import java.awt.Point;
+import java.util.HashMap;
+
+import com.volatil.dod.game.BotPlayer;
+
+/**
+ * Jump point search for four-way movement. Rather than adding every neighbour
+ * to the frontier, each expansion scans in a straight line until it reaches a
+ * square where the path might have to turn, so runs of open floor cost a single
+ * node instead of one per square. Paths found are as short as those of
+ * {@link AStar}.
+ *
+ * @see <a href="https://harablog.wordpress.com/2011/09/07/jump-point-search/">
+ *      Jump Point Search</a>
+ */
+public class JumpPointSearch extends GridSearch {
+  /**
+   * Squares passed over by the search, each mapped to the square before it on
+   * the shortest way there known, so that paths can be followed and resumed one
+   * square at a time.
+   */
+  private final HashMap<Point, Point> trail = new HashMap<Point, Point>();
+  /** Length of the shortest way known to each square of the trail. */
+  private final HashMap<Point, Integer> trailCost = new HashMap<Point, Integer>();
+
+  /**
+   * Default constructor.
+   *
+   * @param b The {@link BotPlayer bot} that is searching for a path to its goal.
+   */
+  public JumpPointSearch(BotPlayer b) {
+    super(b);
+  }
+
+  /**
+   * Constructor for searching any grid of tiles.
+   *
+   * @param tiles  The tiles to search, in which walls and hidden squares block
+   *               movement.
+   * @param origin The starting point.
+   * @param goal   The point to find a path to.
+   */
+  public JumpPointSearch(char[][] tiles, Point origin, Point goal) {
+    super(tiles, origin, goal);
+  }
+
+  @Override
+  protected void expand(Point current) {
+    Point parent = map.get(current).getPrevious();
+    if (parent == null) {
+      trailCost.put(current, 0);
+      jumpFrom(current, 0, -1);
+      jumpFrom(current, 0, 1);
+      jumpFrom(current, 1, 0);
+      jumpFrom(current, -1, 0);
+      return;
+    }
+
+    // Carries on in the direction of travel, or turns to either side.
+    int dx = Integer.signum(current.x - parent.x), dy = Integer.signum(current.y - parent.y);
+    jumpFrom(current, dx, dy);
+    jumpFrom(current, dy, dx);
+    jumpFrom(current, -dy, -dx);
+  }
+
+  /**
+   * @param from The node being expanded.
+   * @param dx   The horizontal direction of travel.
+   * @param dy   The vertical direction of travel.
+   */
+  private void jumpFrom(Point from, int dx, int dy) {
+    Point next = jump(from.x + dx, from.y + dy, dx, dy);
+    if (next == null)
+      return;
+    relax(next, from);
+
+    // Lays the trail over the squares up to the jump point.
+    int cost = (int) map.get(from).getPathCost();
+    Point previous = from;
+    for (int i = 1; i <= score(from, next); i++) {
+      Point square = new Point(from.x + dx * i, from.y + dy * i);
+      Integer known = trailCost.get(square);
+      if (known == null || cost + i < known) {
+        trail.put(square, previous);
+        trailCost.put(square, cost + i);
+      }
+      previous = square;
+    }
+  }
+
+  /**
+   * Scans in a straight line for the next square at which a path might turn.
+   * Moving horizontally, that is wherever a wall beside the path ends. Moving
+   * vertically, it is also wherever a horizontal scan would find such a square.
+   *
+   * @param x  The x-coordinate of the first square scanned.
+   * @param y  The y-coordinate of the first square scanned.
+   * @param dx The horizontal direction of travel.
+   * @param dy The vertical direction of travel.
+   * @return The jump point, or null if the scan runs into a wall.
+   */
+  private Point jump(int x, int y, int dx, int dy) {
+    while (map.isWalkable(x, y)) {
+      if (x == goal.x && y == goal.y)
+        return new Point(x, y);
+      if (dx != 0) {
+        if (forced(x, y - 1, x - dx, y - 1) || forced(x, y + 1, x - dx, y + 1))
+          return new Point(x, y);
+      } else {
+        if (forced(x - 1, y, x - 1, y - dy) || forced(x + 1, y, x + 1, y - dy))
+          return new Point(x, y);
+        if (jump(x + 1, y, 1, 0) != null || jump(x - 1, y, -1, 0) != null)
+          return new Point(x, y);
+      }
+      x += dx;
+      y += dy;
+    }
+    return null;
+  }
+
+  /**
+   * @param x       The x-coordinate of a square beside the path.
+   * @param y       The y-coordinate of a square beside the path.
+   * @param behindX The x-coordinate of the square before it.
+   * @param behindY The y-coordinate of the square before it.
+   * @return Whether the square is open where the one before it was not, so that
+   *         the shortest way there may be through the path.
+   */
+  private boolean forced(int x, int y, int behindX, int behindY) {
+    return map.isWalkable(x, y) && !map.isWalkable(behindX, behindY);
+  }
+
+  @Override
+  protected Point parentOf(Point node) {
+    return trail.get(node);
+  }
+}
@@ -0,0 +1,167 @@
+package com.volatil.dod.search;
+
+import java.util.Arrays;
+
+/**
+ * Distances from a few landmark squares to every square of a map, computed once
+ * so that searches on the map can use the ALT heuristic. By the triangle
+ * inequality, the distance between two squares is at least the difference of
+ * their distances to any landmark, which unlike the manhattan distance accounts
+ * for the walls in the way. Landmarks are spread out by repeatedly picking the
+ * square furthest from those already chosen.
+ *
+ * @see <a href=
+ *      "https://www.microsoft.com/en-us/research/publication/computing-the-shortest-path-a-search-meets-graph-theory/">Computing
+ *      the Shortest Path: A* Search Meets Graph Theory</a>
+ */
+public class Landmarks {
+  /** Marks a square that cannot be reached from a landmark. */
+  private static final int UNREACHABLE = -1;
+
+  /** Width of the map. */
+  private final int width;
+  /** Height of the map. */
+  private final int height;
+  /** The square of each landmark, indexed by {@code y * width + x}. */
+  private final int[] landmarks;
+  /** Distances from each landmark when every one fits in a short, else null. */
+  private final short[][] shortDistances;
+  /** Distances from each landmark when they do not fit in a short, else null. */
+  private final int[][] intDistances;
+
+  /**
+   * Picks the landmarks of a map and measures the distances from each.
+   *
+   * @param map   The map, in which only '#' blocks movement.
+   * @param count The number of landmarks to pick.
+   */
+  public Landmarks(char[][] map, int count) {
+    if (count < 1)
+      throw new IllegalArgumentException("There must be at least one landmark");
+    this.height = map.length;
+    this.width = map[0].length;
+    int cells = width * height;
+    boolean[] open = new boolean[cells];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        open[y * width + x] = map[y][x] != '#';
+      }
+    }
+
+    // Distance from each square to its nearest landmark, unreachable squares
+    // being further than any.
+    int[] nearest = new int[cells];
+    Arrays.fill(nearest, Integer.MAX_VALUE);
+    int[][] distances = new int[count][];
+    int[] chosen = new int[count];
+    int picked = 0;
+    while (picked < count) {
+      int furthest = -1;
+      for (int i = 0; i < cells; i++) {
+        if (open[i] && nearest[i] > 0 && (furthest == -1 || nearest[i] > nearest[furthest]))
+          furthest = i;
+      }
+      if (furthest == -1)
+        break;
+      chosen[picked] = furthest;
+      distances[picked] = breadthFirst(open, furthest);
+      for (int i = 0; i < cells; i++) {
+        if (distances[picked][i] != UNREACHABLE)
+          nearest[i] = Math.min(nearest[i], distances[picked][i]);
+      }
+      picked++;
+    }
+    this.landmarks = Arrays.copyOf(chosen, picked);
+
+    // Stores the distances in half the space when the map is small enough.
+    if (cells <= Short.MAX_VALUE) {
+      this.shortDistances = new short[picked][cells];
+      this.intDistances = null;
+      for (int l = 0; l < picked; l++) {
+        for (int i = 0; i < cells; i++) {
+          shortDistances[l][i] = (short) distances[l][i];
+        }
+      }
+    } else {
+      this.shortDistances = null;
+      this.intDistances = Arrays.copyOf(distances, picked);
+    }
+  }
+
+  /**
+   * @param open  Whether each square can be walked on.
+   * @param start The square to measure from.
+   * @return The distance from the start to every square.
+   */
+  private int[] breadthFirst(boolean[] open, int start) {
+    int[] distance = new int[open.length];
+    Arrays.fill(distance, UNREACHABLE);
+    int[] queue = new int[open.length];
+    int head = 0, tail = 0;
+    distance[start] = 0;
+    queue[tail++] = start;
+    while (head < tail) {
+      int cell = queue[head++];
+      int x = cell % width, y = cell / width;
+      int[] neighbours = { x > 0 ? cell - 1 : -1, x < width - 1 ? cell + 1 : -1, y > 0 ? cell - width : -1,
+          y < height - 1 ? cell + width : -1 };
+      for (int next : neighbours) {
+        if (next != -1 && open[next] && distance[next] == UNREACHABLE) {
+          distance[next] = distance[cell] + 1;
+          queue[tail++] = next;
+        }
+      }
+    }
+    return distance;
+  }
+
+  /**
+   * @param landmark The landmark.
+   * @param cell     The square, indexed by {@code y * width + x}.
+   * @return The distance from the landmark to the square, or -1 if there is no
+   *         way between them.
+   */
+  private int distance(int landmark, int cell) {
+    return shortDistances != null ? shortDistances[landmark][cell] : intDistances[landmark][cell];
+  }
+
+  /**
+   * @return The number of landmarks picked, fewer than asked for only if the
+   *         map has fewer open squares.
+   */
+  public int getLandmarkCount() {
+    return landmarks.length;
+  }
+
+  /**
+   * Gives a lower bound on the length of the shortest path between two squares.
+   *
+   * @param fromX The x-coordinate of the first square.
+   * @param fromY The y-coordinate of the first square.
+   * @param toX   The x-coordinate of the second square.
+   * @param toY   The y-coordinate of the second square.
+   * @return The largest difference between the squares' distances to any
+   *         landmark, or 0 if either square is off the map.
+   */
+  public int estimate(int fromX, int fromY, int toX, int toY) {
+    if (!onMap(fromX, fromY) || !onMap(toX, toY))
+      return 0;
+    int from = fromY * width + fromX, to = toY * width + toX;
+    int estimate = 0;
+    for (int l = 0; l < landmarks.length; l++) {
+      int a = distance(l, from), b = distance(l, to);
+      if (a != UNREACHABLE && b != UNREACHABLE)
+        estimate = Math.max(estimate, Math.abs(a - b));
+    }
+    return estimate;
+  }
+
+  /**
+   * @param x The x-coordinate of the square.
+   * @param y The y-coordinate of the square.
+   * @return Whether the square is on the map.
+   */
+  private boolean onMap(int x, int y) {
+    return x >= 0 && y >= 0 && x < width && y < height;
+  }
+}
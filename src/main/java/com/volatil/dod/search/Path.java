@@ -0,0 +1,159 @@
+package com.volatil.dod.search;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import com.volatil.dod.game.Direction;
+
+/**
+ * A path through a grid, as the directions to take in order. Each direction is
+ * packed into two bits of a long, so a path costs a bit over a byte per four
+ * steps however long it grows, and the steps are read off with a cursor rather
+ * than removed. A path is meant to be owned by one agent, which can hand the
+ * same one to every search it runs so that planning again allocates nothing.
+ * It is not safe for use by several threads at once.
+ */
+public class Path {
+  /** Log base 2 of the number of steps packed into a long. */
+  private static final int WORD_BITS = 5;
+
+  /** Every direction, by its two-bit code. */
+  private static final Direction[] DIRECTIONS = Direction.values();
+
+  /** The packed steps. */
+  private long[] words = new long[1];
+
+  /** The position of the next step to take. */
+  private int head;
+
+  /** The position after the last step. */
+  private int tail;
+
+  /**
+   * @return Whether there are no steps left to take.
+   */
+  public boolean isEmpty() {
+    return head == tail;
+  }
+
+  /**
+   * @return The number of steps left to take.
+   */
+  public int size() {
+    return tail - head;
+  }
+
+  /**
+   * @return The next step, without taking it.
+   * @throws NoSuchElementException If there are no steps left.
+   */
+  public Direction peek() {
+    if (isEmpty())
+      throw new NoSuchElementException("The path is empty");
+    return decode(head);
+  }
+
+  /**
+   * Takes the next step.
+   *
+   * @return The step.
+   * @throws NoSuchElementException If there are no steps left.
+   */
+  public Direction next() {
+    Direction step = peek();
+    head++;
+    return step;
+  }
+
+  /**
+   * @param index How many steps ahead the step is.
+   * @return The step.
+   */
+  public Direction get(int index) {
+    if (index < 0 || index >= size())
+      throw new IndexOutOfBoundsException("No step " + index + " in a path of " + size());
+    return decode(head + index);
+  }
+
+  /** Removes every step, keeping the room they took. */
+  public void clear() {
+    head = 0;
+    tail = 0;
+  }
+
+  /**
+   * Adds a step to the end.
+   *
+   * @param step The step.
+   */
+  public void add(Direction step) {
+    extend(1);
+    set(size() - 1, step);
+  }
+
+  /**
+   * Makes room for more steps at the end, to be filled in with
+   * {@link #set(int, Direction)} in any order.
+   *
+   * @param count The number of steps.
+   */
+  void extend(int count) {
+    if (count == 0)
+      return;
+    if (isEmpty())
+      clear();
+    int needed = ((tail + count - 1) >>> WORD_BITS) + 1;
+    if (needed > words.length)
+      words = Arrays.copyOf(words, Math.max(needed, words.length * 2));
+    tail += count;
+  }
+
+  /**
+   * Replaces the steps with those left in another path.
+   *
+   * @param other The path to copy, which is left as it is.
+   */
+  void copyOf(Path other) {
+    clear();
+    int count = other.size();
+    extend(count);
+    if (other.head == 0) {
+      System.arraycopy(other.words, 0, words, 0, (count + (1 << WORD_BITS) - 1) >>> WORD_BITS);
+    } else {
+      for (int i = 0; i < count; i++) {
+        set(i, other.decode(other.head + i));
+      }
+    }
+  }
+
+  /**
+   * @param index How many steps ahead the step is.
+   * @param step  The step.
+   */
+  void set(int index, Direction step) {
+    int at = head + index;
+    int shift = (at & ((1 << WORD_BITS) - 1)) << 1;
+    long word = words[at >>> WORD_BITS] & ~(3L << shift);
+    words[at >>> WORD_BITS] = word | ((long) step.ordinal() << shift);
+  }
+
+  /**
+   * @param at The position of a step.
+   * @return The step.
+   */
+  private Direction decode(int at) {
+    int shift = (at & ((1 << WORD_BITS) - 1)) << 1;
+    return DIRECTIONS[(int) (words[at >>> WORD_BITS] >>> shift) & 3];
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder("[");
+    for (int at = head; at < tail; at++) {
+      if (at > head)
+        s.append(", ");
+      s.append(decode(at));
+    }
+    return s.append(']').toString();
+  }
+}
@@ -0,0 +1,219 @@
+package com.volatil.dod.search;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.volatil.dod.game.FieldOfView;
+
+/**
+ * Paths already found through small views, shared by every bot on a map so
+ * that bots wandering the same rooms look up the searches they keep repeating.
+ * A search depends only on which squares of the view can be walked on and on
+ * where it starts and ends, so that is what a path is filed under: gold, exits
+ * and other agents in view do not tell otherwise identical searches apart.
+ * <p>
+ * Lookups take no lock. Once the cache holds more paths than it may, it evicts
+ * them in the order they were added, sparing each path that has been looked up
+ * since it was last considered once, so that the paths in use stay.
+ */
+public class PathCache {
+  /** The most paths kept by a cache when none is given. */
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  /** The most paths kept. */
+  private final int capacity;
+
+  /** The paths, by what they were found through. */
+  private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+  /** The keys of the paths, in the order they are considered for eviction. */
+  private final ConcurrentLinkedQueue<Key> order = new ConcurrentLinkedQueue<Key>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param capacity The most paths kept.
+   */
+  public PathCache(int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Capacity must be positive");
+    this.capacity = capacity;
+  }
+
+  /**
+   * @param view   The tiles searched, in which walls and hidden squares block
+   *               movement.
+   * @param origin The start of the search within the tiles.
+   * @param goal   The goal of the search within the tiles.
+   * @return What a path through the tiles is filed under.
+   */
+  public static Key keyOf(char[][] view, Point origin, Point goal) {
+    return new Key(view, origin, goal);
+  }
+
+  /**
+   * Looks a path up.
+   *
+   * @param key  What the path is filed under.
+   * @param into The path to fill in with the steps found, whose steps are
+   *             replaced.
+   * @return Whether a path was found, none meaning that no search has been
+   *         kept rather than that the goal is unreachable.
+   */
+  public boolean get(Key key, Path into) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses.increment();
+      return false;
+    }
+    hits.increment();
+    if (!entry.referenced)
+      entry.referenced = true;
+    into.copyOf(entry.path);
+    return true;
+  }
+
+  /**
+   * Keeps the result of a complete search.
+   *
+   * @param key  What the path is filed under.
+   * @param path The path from the start of the search to its goal, or an empty
+   *             path if the goal is unreachable, which is copied.
+   */
+  public void put(Key key, Path path) {
+    Path copy = new Path();
+    copy.copyOf(path);
+    if (entries.putIfAbsent(key, new Entry(copy)) != null)
+      return;
+    order.add(key);
+    while (entries.size() > capacity) {
+      Key oldest = order.poll();
+      if (oldest == null)
+        break;
+      Entry entry = entries.get(oldest);
+      if (entry != null && entry.referenced) {
+        // Given a second chance, at the back of the queue.
+        entry.referenced = false;
+        order.add(oldest);
+      } else if (entries.remove(oldest) != null) {
+        evictions.increment();
+      }
+    }
+  }
+
+  /**
+   * @return The number of paths kept.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return The most paths kept.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return The number of lookups that found a path.
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return The number of lookups that found none.
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return The share of lookups that found a path, or 0 if there have been
+   *         none.
+   */
+  public double getHitRate() {
+    long hit = hits.sum(), total = hit + misses.sum();
+    return total == 0 ? 0 : (double) hit / total;
+  }
+
+  /**
+   * @return The number of paths evicted to make room.
+   */
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /** A kept path. */
+  private static class Entry {
+    private final Path path;
+    /** Whether the path has been looked up since it was last considered. */
+    private volatile boolean referenced;
+
+    private Entry(Path path) {
+      this.path = path;
+    }
+  }
+
+  /**
+   * What a path is filed under: the squares of a view that block movement, one
+   * bit each, and the start and goal of the search.
+   */
+  public static class Key {
+    private final int width;
+    private final int height;
+    private final int originX;
+    private final int originY;
+    private final int goalX;
+    private final int goalY;
+    private final long[] blocked;
+    private final int hash;
+
+    private Key(char[][] view, Point origin, Point goal) {
+      this.height = view.length;
+      this.width = view[0].length;
+      this.originX = origin.x;
+      this.originY = origin.y;
+      this.goalX = goal.x;
+      this.goalY = goal.y;
+      this.blocked = new long[(width * height + 63) >>> 6];
+      int bit = 0;
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++, bit++) {
+          // Rows shorter than the first are treated as walled beyond their end.
+          char c = x < view[y].length ? view[y][x] : '#';
+          if (c == '#' || c == FieldOfView.HIDDEN)
+            blocked[bit >>> 6] |= 1L << bit;
+        }
+      }
+      int h = Arrays.hashCode(blocked);
+      h = 31 * h + width;
+      h = 31 * h + (originY * width + originX);
+      h = 31 * h + (goalY * width + goalX);
+      this.hash = h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key) o;
+      return hash == other.hash && width == other.width && height == other.height && originX == other.originX
+          && originY == other.originY && goalX == other.goalX && goalY == other.goalY
+          && Arrays.equals(blocked, other.blocked);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
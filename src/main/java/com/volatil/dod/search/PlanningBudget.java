@@ -0,0 +1,53 @@
+package com.volatil.dod.search;
+
+/** Limits on how much work a search may do before it has to return. */
+public class PlanningBudget {
+  /** A budget that never runs out. */
+  public static final PlanningBudget UNBOUNDED = new PlanningBudget(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+  /** Wall-clock time allowed per call, in nanoseconds. */
+  private final long nanos;
+
+  /** Node expansions allowed per call. */
+  private final int expansions;
+
+  /**
+   * Default constructor.
+   *
+   * @param nanos      Wall-clock time allowed per call, in nanoseconds.
+   * @param expansions Node expansions allowed per call.
+   */
+  public PlanningBudget(long nanos, int expansions) {
+    if (nanos <= 0 || expansions <= 0)
+      throw new IllegalArgumentException("Budget must be positive");
+    this.nanos = nanos;
+    this.expansions = expansions;
+  }
+
+  /**
+   * @param nanos Wall-clock time allowed per call, in nanoseconds.
+   * @return A budget limited only by time.
+   */
+  public static PlanningBudget ofNanos(long nanos) {
+    return new PlanningBudget(nanos, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param expansions Node expansions allowed per call.
+   * @return A budget limited only by node expansions.
+   */
+  public static PlanningBudget ofExpansions(int expansions) {
+    return new PlanningBudget(Long.MAX_VALUE, expansions);
+  }
+
+  /**
+   * @param start    The value of {@link System#nanoTime()} when the call began.
+   * @param expanded The nodes expanded so far in the call.
+   * @return Whether the call must stop searching.
+   */
+  boolean isExhausted(long start, int expanded) {
+    if (expanded >= expansions)
+      return true;
+    return nanos != Long.MAX_VALUE && System.nanoTime() - start >= nanos;
+  }
+}
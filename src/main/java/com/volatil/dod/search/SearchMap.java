@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.LinkedList;
 
 import com.volatil.dod.game.BotPlayer;
+import com.volatil.dod.game.FieldOfView;
 
 /** Specialised version of the map for idiomatic searching. */
 public class SearchMap {
@@ -17,27 +18,45 @@ public class SearchMap {
    *          target.
    */
   SearchMap(BotPlayer b) {
-    Point current = b.getLocation(), goal = b.getGoal();
-
-    // Offsets between absolute coordinates and the map's coordinates.
-    int xOffset = -current.x + 2;
-    int yOffset = -current.y + 2;
+    this(b.getMap(), relativeGoal(b));
+  }
 
+  /**
+   * Constructor for searching any grid of tiles.
+   * 
+   * @param tiles The tiles to search, in which walls and hidden squares block
+   *              movement.
+   * @param goal  The coordinates of the goal within the tiles.
+   */
+  SearchMap(char[][] tiles, Point goal) {
     // Generation of the map.
-    char[][] botMap = b.getMap();
-    int ySize = botMap.length, xSize = botMap[0].length;
+    int ySize = tiles.length, xSize = tiles[0].length;
     SearchNode[][] searchMap = new SearchNode[ySize][xSize];
     for (int y = 0; y < ySize; y++) {
       for (int x = 0; x < xSize; x++) {
-        searchMap[y][x] = new SearchNode(botMap[y][x]);
+        searchMap[y][x] = new SearchNode(tiles[y][x]);
       }
     }
 
     // Sets the goal.
-    searchMap[goal.y + yOffset][goal.x + xOffset].makeGoal();
+    searchMap[goal.y][goal.x].makeGoal();
     this.map = searchMap;
   }
 
+  /**
+   * @param b The {@link BotPlayer bot} which is searching for a path.
+   * @return The bot's goal in the coordinates of its map.
+   */
+  private static Point relativeGoal(BotPlayer b) {
+    Point current = b.getLocation(), goal = b.getGoal();
+
+    // Offsets between absolute coordinates and the map's coordinates.
+    int r = b.getViewRadius();
+    int xOffset = -current.x + r;
+    int yOffset = -current.y + r;
+    return new Point(goal.x + xOffset, goal.y + yOffset);
+  }
+
   /**
    * @param target The point under consideration.
    * @return All neighbours of the point in question which can be moved to.
@@ -63,7 +82,7 @@ public class SearchMap {
     neighbours.removeIf(n -> {
       try {
         SearchNode node = get(n);
-        return node.getContents() == '#';
+        return node.getContents() == '#' || node.getContents() == FieldOfView.HIDDEN;
       } catch (NullPointerException e) {
         return true;
       }
@@ -71,6 +90,16 @@ public class SearchMap {
     return neighbours;
   }
 
+  /**
+   * @param x The x-coordinate of the square.
+   * @param y The y-coordinate of the square.
+   * @return Whether the square is on the map and can be moved to.
+   */
+  public boolean isWalkable(int x, int y) {
+    return y >= 0 && y < map.length && x >= 0 && x < map[y].length && map[y][x].getContents() != '#'
+        && map[y][x].getContents() != FieldOfView.HIDDEN;
+  }
+
   /**
    * @param p The coordinates of the {@link SearchNode}.
    * @return The SearchNode at the coordinates specified.
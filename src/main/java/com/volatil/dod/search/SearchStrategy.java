@@ -0,0 +1,48 @@
+package com.volatil.dod.search;
+
+import java.awt.Point;
+
+import com.volatil.dod.game.BotPlayer;
+
+/** The ways a path can be searched for, chosen per map. */
+public enum SearchStrategy {
+  /** {@link AStar}, which suits maps made of narrow corridors. */
+  ASTAR {
+    @Override
+    public GridSearch create(BotPlayer b) {
+      return new AStar(b);
+    }
+
+    @Override
+    public GridSearch create(char[][] tiles, Point origin, Point goal) {
+      return new AStar(tiles, origin, goal);
+    }
+  },
+  /** {@link JumpPointSearch}, which suits maps made of open rooms. */
+  JPS {
+    @Override
+    public GridSearch create(BotPlayer b) {
+      return new JumpPointSearch(b);
+    }
+
+    @Override
+    public GridSearch create(char[][] tiles, Point origin, Point goal) {
+      return new JumpPointSearch(tiles, origin, goal);
+    }
+  };
+
+  /**
+   * @param b The {@link BotPlayer bot} that is searching for a path to its goal.
+   * @return A search of the bot's view.
+   */
+  public abstract GridSearch create(BotPlayer b);
+
+  /**
+   * @param tiles  The tiles to search, in which walls and hidden squares block
+   *               movement.
+   * @param origin The starting point.
+   * @param goal   The point to find a path to.
+   * @return A search of the tiles.
+   */
+  public abstract GridSearch create(char[][] tiles, Point origin, Point goal);
+}
@@ -0,0 +1,175 @@
+package com.volatil.dod.session;
+
+import java.util.EnumMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.volatil.dod.game.Command;
+import com.volatil.dod.game.Verb;
+
+/**
+ * Limits how fast each session may send commands, so that one client spamming
+ * commands, each of which also costs a bot turn, cannot starve the others.
+ * Every session has a token bucket per {@link Verb}, refilled at the rate set
+ * for that verb or else the default rate, which also covers commands that are
+ * not recognised. A command finding its bucket empty is answered with
+ * {@value #THROTTLED} without being played, as is one arriving while too many
+ * of the session's commands are already waiting their turn. Counts of the
+ * commands let through and held back are kept for each verb.
+ */
+public class CommandThrottle {
+  /** The response to a command that was not played for coming too fast. */
+  public static final String THROTTLED = "Throttled.";
+
+  /** Rate and burst of verbs without a limit of their own. */
+  private final Limit defaultLimit;
+
+  /** Rate and burst of each verb given a limit of its own. */
+  private final EnumMap<Verb, Limit> limits = new EnumMap<Verb, Limit>(Verb.class);
+
+  /** The most commands of a session that may wait to be played. */
+  private volatile int queueCapacity = Integer.MAX_VALUE;
+
+  /** Commands held back for arriving while their session's queue was full. */
+  private final LongAdder shed = new LongAdder();
+
+  /** Commands let through, by verb, with unrecognised ones last. */
+  private final LongAdder[] admitted = counters();
+
+  /** Commands held back, by verb, with unrecognised ones last. */
+  private final LongAdder[] throttled = counters();
+
+  /**
+   * Default constructor.
+   *
+   * @param perSecond Commands of each verb a session may send per second.
+   * @param burst     Commands of each verb a session may send at once.
+   */
+  public CommandThrottle(double perSecond, int burst) {
+    this.defaultLimit = new Limit(perSecond, burst);
+  }
+
+  /**
+   * Gives a verb a limit of its own. Only affects sessions that have not sent a
+   * command yet.
+   *
+   * @param verb      The verb.
+   * @param perSecond Commands of the verb a session may send per second.
+   * @param burst     Commands of the verb a session may send at once.
+   * @return This throttle.
+   */
+  public synchronized CommandThrottle limit(Verb verb, double perSecond, int burst) {
+    limits.put(verb, new Limit(perSecond, burst));
+    return this;
+  }
+
+  /**
+   * Bounds how many commands of a session may wait to be played, beyond which
+   * further ones are held back.
+   *
+   * @param capacity The most commands of a session that may wait.
+   * @return This throttle.
+   */
+  public CommandThrottle queueUpTo(int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Queue capacity must be positive");
+    this.queueCapacity = capacity;
+    return this;
+  }
+
+  /**
+   * @return The most commands of a session that may wait to be played.
+   */
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /** Counts a command held back for arriving while its session's queue was full. */
+  void shed() {
+    shed.increment();
+  }
+
+  /**
+   * @return The number of commands held back for arriving while their
+   *         session's queue was full.
+   */
+  public long getShedCount() {
+    return shed.sum();
+  }
+
+  /**
+   * @return Full buckets for a new session, one per verb and one for
+   *         unrecognised commands.
+   */
+  synchronized TokenBucket[] newBuckets() {
+    TokenBucket[] buckets = new TokenBucket[Verb.values().length + 1];
+    for (int i = 0; i < buckets.length; i++) {
+      Limit limit = i < Verb.values().length ? limits.getOrDefault(Verb.values()[i], defaultLimit) : defaultLimit;
+      buckets[i] = new TokenBucket(limit.perSecond, limit.burst);
+    }
+    return buckets;
+  }
+
+  /**
+   * Takes a token for a command from a session's buckets, counting whether
+   * the command was let through.
+   *
+   * @param buckets The session's buckets, which the caller must hold the
+   *                session's lock to use.
+   * @param command The raw command from the player.
+   * @return Whether the command may be played.
+   */
+  boolean admit(TokenBucket[] buckets, String command) {
+    int index = indexOf(Command.verbOf(command));
+    boolean admit = buckets[index].tryTake(System.nanoTime());
+    (admit ? admitted : throttled)[index].increment();
+    return admit;
+  }
+
+  /**
+   * @param verb The verb, or null for unrecognised commands.
+   * @return The number of commands with the verb let through.
+   */
+  public long getAdmittedCount(Verb verb) {
+    return admitted[indexOf(verb)].sum();
+  }
+
+  /**
+   * @param verb The verb, or null for unrecognised commands.
+   * @return The number of commands with the verb held back.
+   */
+  public long getThrottledCount(Verb verb) {
+    return throttled[indexOf(verb)].sum();
+  }
+
+  /**
+   * @param verb The verb, or null for unrecognised commands.
+   * @return The position of the verb's bucket and counters.
+   */
+  private static int indexOf(Verb verb) {
+    return verb == null ? Verb.values().length : verb.ordinal();
+  }
+
+  /**
+   * @return A counter per verb, and one for unrecognised commands.
+   */
+  private static LongAdder[] counters() {
+    LongAdder[] counters = new LongAdder[Verb.values().length + 1];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LongAdder();
+    }
+    return counters;
+  }
+
+  /** How fast commands may be sent. */
+  private static class Limit {
+    private final double perSecond;
+    private final int burst;
+
+    private Limit(double perSecond, int burst) {
+      if (perSecond <= 0 || burst < 1)
+        throw new IllegalArgumentException("Rate and burst must be positive");
+      this.perSecond = perSecond;
+      this.burst = burst;
+    }
+  }
+}
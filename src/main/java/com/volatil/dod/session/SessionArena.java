@@ -0,0 +1,280 @@
+package com.volatil.dod.session;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import com.volatil.dod.game.GameState;
+
+/**
+ * Off-heap storage for the state of passivated games, so that a million idle
+ * sessions cost the heap and the garbage collector next to nothing. Each game
+ * takes a numbered slot. Slots are grouped into slabs of direct memory, each
+ * laid out as a structure of arrays: one column per field, holding that field
+ * for every slot of the slab, followed by a fixed amount of room per slot for
+ * the changes to its map. A {@link Slot} is a flyweight over one slot's
+ * fields. Games whose maps have changed too much to fit are left to be kept
+ * elsewhere.
+ */
+public class SessionArena {
+  /** Log base 2 of the number of slots in a slab. */
+  private static final int SLAB_BITS = 14;
+
+  /** The number of slots in a slab. */
+  private static final int SLAB_SLOTS = 1 << SLAB_BITS;
+
+  /** Room for the changes to a map used when none is given, in bytes. */
+  public static final int DEFAULT_CHANGE_CAPACITY = 64;
+
+  /** Columns of each slab, in order. */
+  private static final int PLAYER_X = 0, PLAYER_Y = 1, BOT_X = 2, BOT_Y = 3, GOLD = 4, TURNS = 5,
+      PLAYER_UNDERNEATH = 6, BOT_UNDERNEATH = 7, FLAGS = 8, CHANGE_LENGTH = 9, CHANGES = 10;
+
+  /** Bytes per slot of each column but the last, whose width is set per arena. */
+  private static final int[] WIDTHS = { 4, 4, 4, 4, 4, 4, 2, 2, 1, 2 };
+
+  /** Flag bits. */
+  private static final byte CAPTURED = 1, ROAMING = 2;
+
+  /** Room for the changes to each slot's map, in bytes. */
+  private final int changeCapacity;
+
+  /** Offset of each column within a slab. */
+  private final int[] columns = new int[CHANGES + 1];
+
+  /** Size of a slab, in bytes. */
+  private final int slabBytes;
+
+  /** The slabs, added to as slots run out. */
+  private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+  /** Slots that have been freed, to be handed out again first. */
+  private int[] free = new int[16];
+
+  /** The number of slots in {@link #free}. */
+  private int freeCount;
+
+  /** The number of slots ever handed out. */
+  private int highWater;
+
+  /** Default constructor. */
+  public SessionArena() {
+    this(DEFAULT_CHANGE_CAPACITY);
+  }
+
+  /**
+   * @param changeCapacity Room for the changes to each slot's map, in bytes, at
+   *                       most {@value Short#MAX_VALUE}.
+   */
+  public SessionArena(int changeCapacity) {
+    if (changeCapacity < 1 || changeCapacity > Short.MAX_VALUE)
+      throw new IllegalArgumentException("Change capacity must be between 1 and " + Short.MAX_VALUE);
+    this.changeCapacity = changeCapacity;
+    int offset = 0;
+    for (int column = 0; column < CHANGES; column++) {
+      columns[column] = offset;
+      offset += WIDTHS[column] * SLAB_SLOTS;
+    }
+    columns[CHANGES] = offset;
+    this.slabBytes = offset + changeCapacity * SLAB_SLOTS;
+  }
+
+  /**
+   * @return A slot, whose fields are left as the last game to use it wrote
+   *         them.
+   */
+  public synchronized int allocate() {
+    if (freeCount > 0)
+      return free[--freeCount];
+    if (highWater == slabs.length * SLAB_SLOTS) {
+      ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+      grown[slabs.length] = ByteBuffer.allocateDirect(slabBytes).order(ByteOrder.nativeOrder());
+      slabs = grown;
+    }
+    return highWater++;
+  }
+
+  /**
+   * Hands a slot back to be reused.
+   *
+   * @param slot The slot.
+   */
+  public synchronized void free(int slot) {
+    if (slot < 0 || slot >= highWater)
+      throw new IllegalArgumentException("No such slot " + slot);
+    if (freeCount == free.length)
+      free = Arrays.copyOf(free, free.length * 2);
+    free[freeCount++] = slot;
+  }
+
+  /**
+   * @param slot The slot.
+   * @return A flyweight over the slot's fields.
+   */
+  public Slot slot(int slot) {
+    return new Slot(slot);
+  }
+
+  /**
+   * @return The number of slots in use.
+   */
+  public synchronized int getUsedCount() {
+    return highWater - freeCount;
+  }
+
+  /**
+   * @return The direct memory reserved for slabs, in bytes.
+   */
+  public long getReservedBytes() {
+    return (long) slabs.length * slabBytes;
+  }
+
+  /**
+   * The fields of one slot. Reads and writes of a slot must be ordered by the
+   * caller, as each session's are by its lock.
+   */
+  public class Slot implements GameState {
+    /** The slab holding the slot. */
+    private final ByteBuffer slab;
+    /** The slot's position within its slab. */
+    private final int index;
+
+    private Slot(int slot) {
+      this.slab = slabs[slot >>> SLAB_BITS];
+      this.index = slot & (SLAB_SLOTS - 1);
+    }
+
+    /**
+     * @param column The column.
+     * @return Where the slot's field of the column lies in the slab.
+     */
+    private int at(int column) {
+      return columns[column] + index * (column == CHANGES ? changeCapacity : WIDTHS[column]);
+    }
+
+    @Override
+    public void setPlayer(int x, int y, char underneath, int gold, int turns, boolean captured) {
+      slab.putInt(at(PLAYER_X), x);
+      slab.putInt(at(PLAYER_Y), y);
+      slab.putChar(at(PLAYER_UNDERNEATH), underneath);
+      slab.putInt(at(GOLD), gold);
+      slab.putInt(at(TURNS), turns);
+      setFlag(CAPTURED, captured);
+    }
+
+    @Override
+    public void setBot(int x, int y, char underneath, boolean roaming) {
+      slab.putInt(at(BOT_X), x);
+      slab.putInt(at(BOT_Y), y);
+      slab.putChar(at(BOT_UNDERNEATH), underneath);
+      setFlag(ROAMING, roaming);
+    }
+
+    /**
+     * @param flag The flag's bit.
+     * @param set  Whether the flag is set.
+     */
+    private void setFlag(byte flag, boolean set) {
+      byte flags = slab.get(at(FLAGS));
+      slab.put(at(FLAGS), (byte) (set ? flags | flag : flags & ~flag));
+    }
+
+    /**
+     * {@inheritDoc} Writing more than the arena has room for fails with an
+     * {@link IOException}.
+     */
+    @Override
+    public DataOutputStream writeChanges() {
+      ByteBuffer region = region(changeCapacity);
+      return new DataOutputStream(new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          if (!region.hasRemaining())
+            throw new IOException("Changes to the map do not fit the arena.");
+          region.put((byte) b);
+        }
+
+        @Override
+        public void close() {
+          slab.putShort(at(CHANGE_LENGTH), (short) region.position());
+        }
+      });
+    }
+
+    @Override
+    public DataInputStream readChanges() {
+      ByteBuffer region = region(slab.getShort(at(CHANGE_LENGTH)));
+      return new DataInputStream(new InputStream() {
+        @Override
+        public int read() {
+          return region.hasRemaining() ? region.get() & 0xFF : -1;
+        }
+      });
+    }
+
+    /**
+     * @param length The length of the region.
+     * @return A buffer over the start of the slot's room for changes.
+     */
+    private ByteBuffer region(int length) {
+      ByteBuffer region = slab.duplicate();
+      region.limit(at(CHANGES) + length).position(at(CHANGES));
+      return region.slice();
+    }
+
+    @Override
+    public int getPlayerX() {
+      return slab.getInt(at(PLAYER_X));
+    }
+
+    @Override
+    public int getPlayerY() {
+      return slab.getInt(at(PLAYER_Y));
+    }
+
+    @Override
+    public char getPlayerUnderneath() {
+      return slab.getChar(at(PLAYER_UNDERNEATH));
+    }
+
+    @Override
+    public int getGold() {
+      return slab.getInt(at(GOLD));
+    }
+
+    @Override
+    public int getTurns() {
+      return slab.getInt(at(TURNS));
+    }
+
+    @Override
+    public boolean isCaptured() {
+      return (slab.get(at(FLAGS)) & CAPTURED) != 0;
+    }
+
+    @Override
+    public int getBotX() {
+      return slab.getInt(at(BOT_X));
+    }
+
+    @Override
+    public int getBotY() {
+      return slab.getInt(at(BOT_Y));
+    }
+
+    @Override
+    public char getBotUnderneath() {
+      return slab.getChar(at(BOT_UNDERNEATH));
+    }
+
+    @Override
+    public boolean isRoaming() {
+      return (slab.get(at(FLAGS)) & ROAMING) != 0;
+    }
+  }
+}
@@ -0,0 +1,685 @@
+package com.volatil.dod.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.volatil.dod.game.MapCatalog;
+import com.volatil.dod.game.MapTemplate;
+import com.volatil.dod.game.RemoteGameLogic;
+import com.volatil.dod.game.Verb;
+import com.volatil.dod.search.PlanningBudget;
+
+/**
+ * Every open session, with the games of those gone cold kept on disk. Games are
+ * held in memory up to a budget, estimated from the size of their maps. When
+ * it is exceeded, or a game is left idle for too long, games are passivated in
+ * least recently used order: written to a small file and dropped from the
+ * heap. The next command to a passivated session reads its game back in, so
+ * players never notice. Games in a shared dungeon always stay in memory, as do
+ * games not yet started, which hold little more than their map's name.
+ * <p>
+ * Given a {@link TimingWheel}, each session also keeps its timeouts there
+ * rather than waiting for {@link #evictIdle()}: its game is passivated as soon
+ * as it goes idle, the bot takes its turn whenever the player lets a turn's
+ * time limit pass, and a player who stays away long enough quits the game.
+ * Every command the player sends starts these timeouts again.
+ * <p>
+ * Given a {@link CommandThrottle}, commands sent faster than it allows, or
+ * while too many others of the session are waiting to be played, are answered
+ * with {@value CommandThrottle#THROTTLED} instead, without waking the game.
+ * <p>
+ * Given a {@link SessionArena}, games are passivated into off-heap slots
+ * rather than files, falling back to a file only for a game whose map has
+ * changed too much to fit its slot.
+ */
+public class SessionRegistry implements AutoCloseable {
+  /** Estimated memory used by a game apart from its map, in bytes. */
+  private static final long GAME_OVERHEAD = 4096;
+
+  /** Extension of passivated games. */
+  private static final String EXTENSION = ".session";
+
+  /** Folder passivated games are written to. */
+  private final Path directory;
+
+  /** Estimated memory that resident games may use, in bytes. */
+  private final long memoryBudget;
+
+  /** How long a game may go unused before it is passivated, in milliseconds. */
+  private final long idleMillis;
+
+  /** How long a player may send no commands before quitting, in milliseconds. */
+  private final long quitMillis;
+
+  /** How long a player has for each turn, in milliseconds, or 0 for no limit. */
+  private final long turnMillis;
+
+  /** The wheel keeping each session's timeouts, or null if there is none. */
+  private final TimingWheel timers;
+
+  /** Maps new games are played on. */
+  private final MapCatalog catalog;
+
+  /** The work bots may do planning each turn. */
+  private final PlanningBudget botBudget;
+
+  /** Every session, from least to most recently used. */
+  private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<String, Session>(16, 0.75f, true);
+
+  /** Estimated memory used by resident games, in bytes. */
+  private final AtomicLong residentBytes = new AtomicLong();
+
+  /** Limits how fast sessions may send commands, or null if they may not be. */
+  private volatile CommandThrottle throttle;
+
+  /** Where games are passivated to before files, or null to only use files. */
+  private volatile SessionArena arena;
+
+  /** The number of sessions closed because their players stayed away. */
+  private final AtomicLong timedOut = new AtomicLong();
+
+  /**
+   * Default constructor.
+   *
+   * @param directory    Folder passivated games are written to.
+   * @param memoryBudget Estimated memory resident games may use, in bytes.
+   * @param idleMillis   How long a game may go unused before it is passivated.
+   * @param catalog      Maps new games are played on.
+   * @param botBudget    The work bots may do planning each turn.
+   * @throws IOException If the folder cannot be created.
+   */
+  public SessionRegistry(Path directory, long memoryBudget, long idleMillis, MapCatalog catalog,
+      PlanningBudget botBudget) throws IOException {
+    this(directory, memoryBudget, idleMillis, catalog, botBudget, null, 0, 0);
+  }
+
+  /**
+   * Constructor for keeping each session's timeouts in a timing wheel.
+   *
+   * @param directory    Folder passivated games are written to.
+   * @param memoryBudget Estimated memory resident games may use, in bytes.
+   * @param idleMillis   How long a game may go unused before it is passivated.
+   * @param catalog      Maps new games are played on.
+   * @param botBudget    The work bots may do planning each turn.
+   * @param timers       The wheel keeping each session's timeouts, or null to
+   *                     only passivate idle games on {@link #evictIdle()}.
+   * @param quitMillis   How long a player may send no commands before quitting,
+   *                     or 0 to never quit them.
+   * @param turnMillis   How long a player has for each turn before the bot moves
+   *                     without them, or 0 for no limit.
+   * @throws IOException If the folder cannot be created.
+   */
+  public SessionRegistry(Path directory, long memoryBudget, long idleMillis, MapCatalog catalog,
+      PlanningBudget botBudget, TimingWheel timers, long quitMillis, long turnMillis) throws IOException {
+    if (memoryBudget <= 0 || idleMillis <= 0)
+      throw new IllegalArgumentException("Memory budget and idle timeout must be positive");
+    if (quitMillis < 0 || turnMillis < 0)
+      throw new IllegalArgumentException("Quit and turn timeouts must not be negative");
+    this.directory = Files.createDirectories(directory);
+    this.memoryBudget = memoryBudget;
+    this.idleMillis = idleMillis;
+    this.catalog = catalog;
+    this.botBudget = botBudget;
+    this.timers = timers;
+    this.quitMillis = quitMillis;
+    this.turnMillis = turnMillis;
+  }
+
+  /**
+   * Limits how fast each session may send commands.
+   *
+   * @param throttle The limits, or null for none.
+   */
+  public void throttleWith(CommandThrottle throttle) {
+    this.throttle = throttle;
+  }
+
+  /**
+   * Passivates games into off-heap memory rather than files where they fit.
+   *
+   * @param arena The memory, or null to only use files.
+   */
+  public void storeIn(SessionArena arena) {
+    this.arena = arena;
+  }
+
+  /**
+   * Starts a game on a random map.
+   *
+   * @return The new session's identifier.
+   */
+  public String open() {
+    return open(new RemoteGameLogic(catalog, botBudget));
+  }
+
+  /**
+   * Adds a game made elsewhere.
+   *
+   * @param game The game.
+   * @return The new session's identifier.
+   */
+  public String open(RemoteGameLogic game) {
+    String id = UUID.randomUUID().toString();
+    open(id, game);
+    return id;
+  }
+
+  /**
+   * Adds a game under an identifier chosen elsewhere, such as a game moved from
+   * another registry.
+   *
+   * @param id   The session's identifier.
+   * @param game The game.
+   * @throws IllegalArgumentException If there is already a session with the
+   *                                  identifier.
+   */
+  public void open(String id, RemoteGameLogic game) {
+    Session session = new Session(game);
+    // Locked before it can be found, so its footprint is counted before the
+    // first command can change it.
+    session.lock.lock();
+    try {
+      synchronized (this) {
+        if (sessions.putIfAbsent(id, session) != null)
+          throw new IllegalArgumentException("Session " + id + " already exists");
+      }
+      residentBytes.addAndGet(session.footprint);
+      restartTimeouts(id, session);
+    } finally {
+      session.lock.unlock();
+    }
+    enforceBudget();
+  }
+
+  /**
+   * Plays a turn of a session's game, reading the game back in first if it has
+   * been passivated. The session is closed once its game is over.
+   *
+   * @param id      The session's identifier.
+   * @param command The raw command from the player.
+   * @return The response to the player, {@value CommandThrottle#THROTTLED} if
+   *         the command came too fast, or null if there is no such session.
+   * @throws UncheckedIOException If a passivated game cannot be read back.
+   */
+  public String execute(String id, String command) {
+    Session session;
+    synchronized (this) {
+      session = lookUp(id);
+    }
+    if (session == null)
+      return null;
+
+    CommandThrottle throttle = this.throttle;
+    if (throttle != null && session.lock.getQueueLength() >= throttle.getQueueCapacity()) {
+      throttle.shed();
+      return CommandThrottle.THROTTLED;
+    }
+    String response;
+    session.lock.lock();
+    try {
+      if (session.closed)
+        return null;
+      if (throttle != null) {
+        if (session.buckets == null)
+          session.buckets = throttle.newBuckets();
+        if (!throttle.admit(session.buckets, command))
+          return CommandThrottle.THROTTLED;
+      }
+      if (session.game == null)
+        activate(id, session);
+      response = session.game.executeMove(command);
+      // The game's map is copied on the first command that needs it.
+      long footprint = footprintOf(session.game);
+      residentBytes.addAndGet(footprint - session.footprint);
+      session.footprint = footprint;
+      if (response.equals("LOSE") || response.startsWith("WIN"))
+        close(id);
+      else
+        restartTimeouts(id, session);
+    } finally {
+      session.lock.unlock();
+    }
+    enforceBudget();
+    return response;
+  }
+
+  /**
+   * Ends a session, discarding its game.
+   *
+   * @param id The session's identifier.
+   */
+  public void close(String id) {
+    Session session;
+    synchronized (this) {
+      session = sessions.remove(id);
+    }
+    if (session == null)
+      return;
+    session.lock.lock();
+    try {
+      session.closed = true;
+      cancelTimeouts(session);
+      if (session.game != null) {
+        session.game.leave();
+        session.game = null;
+        residentBytes.addAndGet(-session.footprint);
+      }
+      if (session.slot != -1) {
+        session.arena.free(session.slot);
+        session.slot = -1;
+      }
+      Files.deleteIfExists(fileOf(id));
+    } catch (IOException e) {
+      System.err.println("Failed to delete session " + id + ": " + e.getMessage());
+    } finally {
+      session.lock.unlock();
+    }
+  }
+
+  /**
+   * Ends a session without ending its game, so that the game can be moved
+   * elsewhere. A passivated game is read back first, the session being left
+   * open if it cannot be.
+   *
+   * @param id The session's identifier.
+   * @return The game, or null if there is no such session.
+   * @throws UncheckedIOException If a passivated game cannot be read back.
+   */
+  public RemoteGameLogic detach(String id) {
+    Session session;
+    synchronized (this) {
+      session = lookUp(id);
+    }
+    if (session == null)
+      return null;
+    session.lock.lock();
+    try {
+      if (session.closed)
+        return null;
+      if (session.game == null)
+        activate(id, session);
+      synchronized (this) {
+        sessions.remove(id);
+      }
+      session.closed = true;
+      cancelTimeouts(session);
+      RemoteGameLogic game = session.game;
+      session.game = null;
+      residentBytes.addAndGet(-session.footprint);
+      return game;
+    } finally {
+      session.lock.unlock();
+    }
+  }
+
+  /**
+   * Finds a session, marking it as the most recently used. The caller must
+   * hold the registry's lock.
+   *
+   * @param id The session's identifier.
+   * @return The session, or null if there is no such session.
+   */
+  private Session lookUp(String id) {
+    // Looking the session up moves it to the end of the access order, so it
+    // is stamped at the same time, even if its command is then throttled.
+    Session session = sessions.get(id);
+    if (session != null)
+      session.lastUsed = System.nanoTime();
+    return session;
+  }
+
+  /**
+   * Passivates every game that has gone unused for longer than the idle timeout.
+   *
+   * @return The number of games passivated.
+   */
+  public int evictIdle() {
+    long now = System.nanoTime(), idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    List<java.util.Map.Entry<String, Session>> idle = new ArrayList<java.util.Map.Entry<String, Session>>();
+    synchronized (this) {
+      // Least recently used first, so the scan stops at the first game in use.
+      for (java.util.Map.Entry<String, Session> entry : sessions.entrySet()) {
+        if (now - entry.getValue().lastUsed < idleNanos)
+          break;
+        if (entry.getValue().game != null)
+          idle.add(new java.util.AbstractMap.SimpleImmutableEntry<String, Session>(entry));
+      }
+    }
+    int evicted = 0;
+    for (java.util.Map.Entry<String, Session> entry : idle) {
+      if (passivate(entry.getKey(), entry.getValue()))
+        evicted++;
+    }
+    return evicted;
+  }
+
+  /**
+   * Passivates the least recently used games until the resident ones fit the
+   * memory budget.
+   */
+  private void enforceBudget() {
+    while (residentBytes.get() > memoryBudget) {
+      String victim = null;
+      Session session = null;
+      synchronized (this) {
+        Iterator<java.util.Map.Entry<String, Session>> coldest = sessions.entrySet().iterator();
+        while (victim == null && coldest.hasNext()) {
+          java.util.Map.Entry<String, Session> entry = coldest.next();
+          session = entry.getValue();
+          if (session.game != null && session.game.isStarted() && !session.game.isShared()
+              && !session.lock.isLocked())
+            victim = entry.getKey();
+        }
+      }
+      if (victim == null || !passivate(victim, session))
+        return;
+    }
+  }
+
+  /**
+   * Writes a session's game to off-heap memory or disk and drops it from the
+   * heap, unless it is in use or not yet started.
+   *
+   * @param id      The session's identifier.
+   * @param session The session.
+   * @return Whether the game was passivated.
+   */
+  private boolean passivate(String id, Session session) {
+    if (!session.lock.tryLock())
+      return false;
+    try {
+      if (session.closed || session.game == null || !session.game.isStarted() || session.game.isShared())
+        return false;
+      if (!storeOffHeap(session)) {
+        Path file = fileOf(id), partial = directory.resolve(id + EXTENSION + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partial)))) {
+          session.game.writeState(out);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      session.game = null;
+      residentBytes.addAndGet(-session.footprint);
+      // A passivated game waits for the player, so the bot stops moving.
+      if (session.turnTimeout != null)
+        session.turnTimeout.cancel();
+      return true;
+    } catch (IOException e) {
+      System.err.println("Failed to passivate session " + id + ": " + e.getMessage());
+      return false;
+    } finally {
+      session.lock.unlock();
+    }
+  }
+
+  /**
+   * Cancels a session's timeouts and schedules them afresh, as the player has
+   * just been heard from. The caller must hold the session's lock.
+   *
+   * @param id      The session's identifier.
+   * @param session The session.
+   */
+  private void restartTimeouts(String id, Session session) {
+    if (timers == null)
+      return;
+    cancelTimeouts(session);
+    if (!session.game.isShared())
+      session.idleTimeout = timers.schedule(idleMillis, timeout -> passivateIdle(id, session, timeout));
+    if (quitMillis > 0)
+      session.quitTimeout = timers.schedule(quitMillis, timeout -> quitIdle(id, session, timeout));
+    if (turnMillis > 0)
+      session.turnTimeout = timers.schedule(turnMillis, timeout -> missTurn(id, session, timeout));
+  }
+
+  /**
+   * @param session The session, whose lock the caller must hold.
+   */
+  private static void cancelTimeouts(Session session) {
+    for (TimingWheel.Timeout timeout : new TimingWheel.Timeout[] { session.idleTimeout, session.quitTimeout,
+        session.turnTimeout }) {
+      if (timeout != null)
+        timeout.cancel();
+    }
+    session.idleTimeout = session.quitTimeout = session.turnTimeout = null;
+  }
+
+  /**
+   * Passivates a game that has gone unused for the idle timeout.
+   *
+   * @param id      The session's identifier.
+   * @param session The session.
+   * @param timeout The timeout that expired.
+   */
+  private void passivateIdle(String id, Session session, TimingWheel.Timeout timeout) {
+    if (!session.lock.tryLock())
+      return;
+    try {
+      if (session.idleTimeout == timeout)
+        passivate(id, session);
+    } finally {
+      session.lock.unlock();
+    }
+  }
+
+  /**
+   * Quits the game of a player who has sent no commands for too long. A
+   * command being played means the player is back, so the timeout is ignored.
+   *
+   * @param id      The session's identifier.
+   * @param session The session.
+   * @param timeout The timeout that expired.
+   */
+  private void quitIdle(String id, Session session, TimingWheel.Timeout timeout) {
+    if (!session.lock.tryLock())
+      return;
+    try {
+      if (session.quitTimeout != timeout || session.closed)
+        return;
+      // No one is left to hear the result, so a passivated game is not read back.
+      if (session.game != null)
+        session.game.playerTurn(Verb.QUIT.name());
+      timedOut.incrementAndGet();
+      close(id);
+    } finally {
+      session.lock.unlock();
+    }
+  }
+
+  /**
+   * Gives the bot its turn when the player has let the time for theirs pass,
+   * then starts the next turn's clock.
+   *
+   * @param id      The session's identifier.
+   * @param session The session.
+   * @param timeout The timeout that expired.
+   */
+  private void missTurn(String id, Session session, TimingWheel.Timeout timeout) {
+    if (!session.lock.tryLock())
+      return;
+    try {
+      if (session.turnTimeout != timeout || session.closed || session.game == null)
+        return;
+      session.game.botTurn();
+      session.turnTimeout = timers.schedule(turnMillis, next -> missTurn(id, session, next));
+    } finally {
+      session.lock.unlock();
+    }
+  }
+
+  /**
+   * Saves a session's game into the arena, if there is one and the game fits.
+   * The caller must hold the session's lock.
+   *
+   * @param session The session.
+   * @return Whether the game was saved.
+   */
+  private boolean storeOffHeap(Session session) {
+    SessionArena arena = this.arena;
+    if (arena == null)
+      return false;
+    int slot = arena.allocate();
+    try {
+      session.game.saveTo(arena.slot(slot));
+    } catch (IOException e) {
+      // Too many squares have changed to fit the slot.
+      arena.free(slot);
+      return false;
+    }
+    session.arena = arena;
+    session.slot = slot;
+    return true;
+  }
+
+  /**
+   * Reads a passivated game back into memory. The caller must hold the
+   * session's lock.
+   *
+   * @param id      The session's identifier.
+   * @param session The session.
+   */
+  private void activate(String id, Session session) {
+    if (session.slot != -1) {
+      try {
+        session.game = new RemoteGameLogic(session.template, session.arena.slot(session.slot), botBudget);
+      } catch (IOException e) {
+        // The slot is kept, so that the saved game is not lost.
+        throw new UncheckedIOException("Failed to reactivate session " + id, e);
+      }
+      session.arena.free(session.slot);
+      session.slot = -1;
+      residentBytes.addAndGet(session.footprint);
+      return;
+    }
+    Path file = fileOf(id);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      session.game = new RemoteGameLogic(session.template, in, botBudget);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to reactivate session " + id, e);
+    }
+    residentBytes.addAndGet(session.footprint);
+    try {
+      Files.delete(file);
+    } catch (IOException e) {
+      System.err.println("Failed to delete session " + id + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * @param id The session's identifier.
+   * @return The file the session's game is passivated to.
+   */
+  private Path fileOf(String id) {
+    return directory.resolve(id + EXTENSION);
+  }
+
+  /**
+   * @return The number of open sessions.
+   */
+  public synchronized int getSessionCount() {
+    return sessions.size();
+  }
+
+  /**
+   * @return The identifier of every open session.
+   */
+  public synchronized List<String> getSessionIds() {
+    return new ArrayList<String>(sessions.keySet());
+  }
+
+  /**
+   * @return The number of sessions whose games are held in memory.
+   */
+  public synchronized int getResidentCount() {
+    int resident = 0;
+    for (Session session : sessions.values()) {
+      if (session.game != null)
+        resident++;
+    }
+    return resident;
+  }
+
+  /**
+   * @return Estimated memory used by resident games, in bytes.
+   */
+  public long getResidentBytes() {
+    return residentBytes.get();
+  }
+
+  /**
+   * @return The number of sessions closed because their players stayed away.
+   */
+  public long getTimedOutCount() {
+    return timedOut.get();
+  }
+
+  /** Closes every session, discarding their games. */
+  @Override
+  public void close() {
+    List<String> ids;
+    synchronized (this) {
+      ids = new ArrayList<String>(sessions.keySet());
+    }
+    for (String id : ids) {
+      close(id);
+    }
+  }
+
+  /**
+   * @param game A game.
+   * @return Estimated memory used by the game when resident, in bytes.
+   */
+  private static long footprintOf(RemoteGameLogic game) {
+    if (!game.isStarted())
+      return GAME_OVERHEAD;
+    MapTemplate template = game.getTemplate();
+    // A char per square, plus an array header per row.
+    return GAME_OVERHEAD + 2L * template.getWidth() * template.getHeight() + 16L * template.getHeight();
+  }
+
+  /** A game and what is needed to bring it back once passivated. */
+  private static class Session {
+    /** Held while the game is played or passivated. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** The map the game is played on, shared with other games. */
+    private final MapTemplate template;
+    /** Estimated memory used by the game when resident, in bytes. */
+    private long footprint;
+    /** The game, or null while it is passivated. */
+    private RemoteGameLogic game;
+    /**
+     * When the session was last looked up, from {@link System#nanoTime()}, so
+     * that sessions are in order of it.
+     */
+    private volatile long lastUsed = System.nanoTime();
+    /** Whether the session has ended. */
+    private boolean closed;
+    /** The arena holding the passivated game, if it is in one. */
+    private SessionArena arena;
+    /** The game's slot in the arena, or -1 if it is not in one. */
+    private int slot = -1;
+    /** The session's token buckets, made on its first throttled command. */
+    private TokenBucket[] buckets;
+    /** When the game is to be passivated, quit, or the bot move without the player. */
+    private TimingWheel.Timeout idleTimeout, quitTimeout, turnTimeout;
+
+    private Session(RemoteGameLogic game) {
+      this.game = game;
+      this.template = game.getTemplate();
+      this.footprint = footprintOf(game);
+    }
+  }
+}
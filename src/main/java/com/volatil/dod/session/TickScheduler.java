@@ -0,0 +1,294 @@
+package com.volatil.dod.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.volatil.dod.game.RemoteGameLogic;
+import com.volatil.dod.game.SpectatorFeed;
+
+/**
+ * Real-time mode, in which game time advances on a fixed-rate clock instead of
+ * with each command. Every tick, each shard applies at most one queued command
+ * per session, gives every bot in the shard a turn, then completes all of the
+ * responses together.
+ * <p>
+ * Given a {@link CommandThrottle}, commands are checked against it as they
+ * are queued. Those sent too fast are answered with
+ * {@value CommandThrottle#THROTTLED} at once, as are those arriving while the
+ * session's queue is full, so that a flood of commands is shed rather than
+ * delaying the session's own later commands without bound.
+ */
+public class TickScheduler implements AutoCloseable {
+  /** Length of a tick in milliseconds. */
+  private final long tickMillis;
+
+  /** Sessions, partitioned into shards that are each run by a single worker. */
+  private final List<ConcurrentHashMap<String, RealTimeSession>> shards;
+
+  /** Thread driving the clock. */
+  private final ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "dod-tick");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /** Threads running the shards. */
+  private final ExecutorService workers;
+
+  /** Feeds sent a frame at the end of every tick. */
+  private final CopyOnWriteArrayList<SpectatorFeed> feeds = new CopyOnWriteArrayList<SpectatorFeed>();
+
+  /** Limits how fast sessions may send commands, or null if they may not be. */
+  private volatile CommandThrottle throttle;
+
+  /** The number of ticks run so far. */
+  private volatile long ticks;
+
+  /** Whether the scheduler has been closed. */
+  private volatile boolean closed;
+
+  /**
+   * Default constructor.
+   *
+   * @param tickMillis Length of a tick in milliseconds.
+   * @param shardCount The number of shards run in parallel each tick.
+   */
+  public TickScheduler(long tickMillis, int shardCount) {
+    if (tickMillis <= 0 || shardCount <= 0)
+      throw new IllegalArgumentException("Tick length and shard count must be positive");
+    this.tickMillis = tickMillis;
+    this.shards = new ArrayList<ConcurrentHashMap<String, RealTimeSession>>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(new ConcurrentHashMap<String, RealTimeSession>());
+    }
+    this.workers = Executors.newFixedThreadPool(shardCount, r -> {
+      Thread t = new Thread(r, "dod-shard");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /** Starts the clock. */
+  public void start() {
+    clock.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Limits how fast each session may send commands.
+   *
+   * @param throttle The limits, or null for none.
+   */
+  public void throttleWith(CommandThrottle throttle) {
+    this.throttle = throttle;
+  }
+
+  /**
+   * Sends a spectator feed a frame at the end of every tick, such as that of a
+   * {@link com.volatil.dod.game.SharedDungeon shared dungeon} the sessions play
+   * in.
+   *
+   * @param feed The feed.
+   */
+  public void broadcast(SpectatorFeed feed) {
+    feeds.addIfAbsent(feed);
+  }
+
+  /**
+   * Adds a game to the clock.
+   *
+   * @param id   The session's identifier.
+   * @param game The game played in the session.
+   */
+  public void register(String id, RemoteGameLogic game) {
+    shardOf(id).put(id, new RealTimeSession(game));
+  }
+
+  /**
+   * Removes a game from the clock, failing any commands still waiting.
+   *
+   * @param id The session's identifier.
+   */
+  public void unregister(String id) {
+    RealTimeSession session = shardOf(id).remove(id);
+    if (session == null)
+      return;
+    PendingCommand pending;
+    while ((pending = session.inbox.poll()) != null) {
+      pending.response.completeExceptionally(new IllegalStateException("Session closed"));
+    }
+  }
+
+  /**
+   * Queues a command to be executed on one of the following ticks.
+   *
+   * @param id      The session's identifier.
+   * @param command The raw command from the player.
+   * @return The response to the player, completed once the command has run,
+   *         or at once with {@value CommandThrottle#THROTTLED} if it came too
+   *         fast.
+   */
+  public CompletableFuture<String> submit(String id, String command) {
+    CompletableFuture<String> response = new CompletableFuture<String>();
+    RealTimeSession session = shardOf(id).get(id);
+    if (session == null) {
+      response.completeExceptionally(new IllegalArgumentException("Unknown session " + id));
+      return response;
+    }
+    CommandThrottle throttle = this.throttle;
+    if (throttle != null) {
+      if (session.queued.incrementAndGet() > throttle.getQueueCapacity()) {
+        session.queued.decrementAndGet();
+        throttle.shed();
+        response.complete(CommandThrottle.THROTTLED);
+        return response;
+      }
+      boolean admitted;
+      synchronized (session) {
+        if (session.buckets == null)
+          session.buckets = throttle.newBuckets();
+        admitted = throttle.admit(session.buckets, command);
+      }
+      if (!admitted) {
+        session.queued.decrementAndGet();
+        response.complete(CommandThrottle.THROTTLED);
+        return response;
+      }
+    } else {
+      session.queued.incrementAndGet();
+    }
+    PendingCommand pending = new PendingCommand(command, response);
+    session.inbox.add(pending);
+    // The session may have been removed, and its inbox drained, meanwhile.
+    if ((closed || shardOf(id).get(id) != session) && session.inbox.remove(pending)) {
+      session.queued.decrementAndGet();
+      response.completeExceptionally(new IllegalStateException(closed ? "Scheduler closed" : "Session closed"));
+    }
+    return response;
+  }
+
+  /**
+   * @return The number of ticks run so far.
+   */
+  public long getTicks() {
+    return ticks;
+  }
+
+  /** Advances game time for every session, waiting until all shards finish. */
+  void tick() {
+    List<Future<?>> running = new ArrayList<Future<?>>(shards.size());
+    for (ConcurrentHashMap<String, RealTimeSession> shard : shards) {
+      if (!shard.isEmpty())
+        running.add(workers.submit(() -> runShard(shard)));
+    }
+    for (Future<?> shard : running) {
+      try {
+        shard.get();
+      } catch (Exception e) {
+        System.err.println("Tick failed: " + e.getMessage());
+      }
+    }
+    for (SpectatorFeed feed : feeds) {
+      try {
+        feed.publish();
+      } catch (RuntimeException e) {
+        System.err.println("Publishing failed: " + e.getMessage());
+      }
+    }
+    ticks++;
+  }
+
+  /**
+   * Plays a tick for every session of a shard.
+   *
+   * @param shard The sessions of the shard.
+   */
+  private void runShard(ConcurrentHashMap<String, RealTimeSession> shard) {
+    List<PendingCommand> done = new ArrayList<PendingCommand>();
+    List<String> responses = new ArrayList<String>();
+    try {
+      for (RealTimeSession session : shard.values()) {
+        PendingCommand pending = session.inbox.poll();
+        if (pending == null)
+          continue;
+        session.queued.decrementAndGet();
+        try {
+          responses.add(session.game.playerTurn(pending.command));
+          done.add(pending);
+        } catch (RuntimeException e) {
+          pending.response.completeExceptionally(e);
+        }
+      }
+      for (RealTimeSession session : shard.values()) {
+        // One bot failing must not cost the rest of the shard its turn.
+        try {
+          session.game.botTurn();
+        } catch (RuntimeException e) {
+          System.err.println("Bot turn failed: " + e.getMessage());
+        }
+      }
+    } finally {
+      for (int i = 0; i < done.size(); i++) {
+        done.get(i).response.complete(responses.get(i));
+      }
+    }
+  }
+
+  /**
+   * @param id The session's identifier.
+   * @return The shard the session belongs to.
+   */
+  private ConcurrentHashMap<String, RealTimeSession> shardOf(String id) {
+    return shards.get(Math.floorMod(id.hashCode(), shards.size()));
+  }
+
+  /** Stops the clock, failing every command still waiting for a tick. */
+  @Override
+  public void close() {
+    closed = true;
+    clock.shutdownNow();
+    workers.shutdownNow();
+    for (ConcurrentHashMap<String, RealTimeSession> shard : shards) {
+      for (RealTimeSession session : shard.values()) {
+        PendingCommand pending;
+        while ((pending = session.inbox.poll()) != null) {
+          pending.response.completeExceptionally(new IllegalStateException("Scheduler closed"));
+        }
+      }
+    }
+  }
+
+  /** A game and the commands waiting for its next tick. */
+  private static class RealTimeSession {
+    private final RemoteGameLogic game;
+    private final ConcurrentLinkedQueue<PendingCommand> inbox = new ConcurrentLinkedQueue<PendingCommand>();
+    /** The number of commands in the inbox, or about to be. */
+    private final AtomicInteger queued = new AtomicInteger();
+    /** The session's token buckets, made on its first throttled command. */
+    private TokenBucket[] buckets;
+
+    private RealTimeSession(RemoteGameLogic game) {
+      this.game = game;
+    }
+  }
+
+  /** A command and where its response is to be delivered. */
+  private static class PendingCommand {
+    private final String command;
+    private final CompletableFuture<String> response;
+
+    private PendingCommand(String command, CompletableFuture<String> response) {
+      this.command = command;
+      this.response = response;
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package com.volatil.dod.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel, for keeping a timeout per session without a scheduled
+ * task each. Time is cut into ticks, and the wheel is a ring of buckets with
+ * one tick each; a timeout goes in the bucket of the tick it falls due on,
+ * counting how many more turns of the wheel it must wait if it is further away
+ * than one turn. Scheduling and cancelling are constant time: both are queued
+ * from any thread, and applied by the wheel's own thread at the start of each
+ * tick, which then expires the whole of the current bucket in one batch. The
+ * expired tasks are handed to an executor, so that slow ones never hold up
+ * the wheel and with it every other timeout.
+ *
+ * @see <a href="http://www.cs.columbia.edu/~nahum/w6998/papers/sosp87-timing-wheels.pdf">Hashed
+ *      and Hierarchical Timing Wheels</a>
+ */
+public class TimingWheel implements AutoCloseable {
+  /** Length of a tick in nanoseconds. */
+  private final long tickNanos;
+
+  /** The buckets, one per tick of a turn of the wheel. */
+  private final Timeout[] buckets;
+
+  /** Picks a timeout's bucket from its tick, the number of buckets being a power of two. */
+  private final int mask;
+
+  /** When the wheel started, from {@link System#nanoTime()}. */
+  private final long startNanos = System.nanoTime();
+
+  /** Timeouts scheduled since the last tick. */
+  private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+  /** Timeouts cancelled since the last tick. */
+  private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+  /** The number of timeouts waiting to expire. */
+  private final AtomicInteger pending = new AtomicInteger();
+
+  /** Runs the tasks of expired timeouts. */
+  private final Executor expiry;
+
+  /** The executor made by the wheel for its tasks, or null if it was given one. */
+  private final ExecutorService ownExpiry;
+
+  /** Thread turning the wheel, or null until it is started. */
+  private ScheduledExecutorService clock;
+
+  /** The next tick to run. Only touched by the thread turning the wheel. */
+  private long tick;
+
+  /**
+   * Default constructor.
+   *
+   * @param tickMillis Length of a tick in milliseconds, the precision of every
+   *                   timeout.
+   * @param wheelSize  The number of ticks in a turn of the wheel, rounded up to
+   *                   a power of two.
+   */
+  public TimingWheel(long tickMillis, int wheelSize) {
+    this(tickMillis, wheelSize, null);
+  }
+
+  /**
+   * Constructor running expired tasks on a given executor.
+   *
+   * @param tickMillis Length of a tick in milliseconds, the precision of every
+   *                   timeout.
+   * @param wheelSize  The number of ticks in a turn of the wheel, rounded up to
+   *                   a power of two.
+   * @param expiry     Runs the tasks of expired timeouts, or null for a pool of
+   *                   the wheel's own with a thread per processor.
+   */
+  public TimingWheel(long tickMillis, int wheelSize, Executor expiry) {
+    if (tickMillis <= 0 || wheelSize <= 0 || wheelSize > 1 << 30)
+      throw new IllegalArgumentException("Tick length and wheel size must be positive");
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    int size = Integer.highestOneBit(wheelSize);
+    if (size < wheelSize)
+      size <<= 1;
+    this.buckets = new Timeout[size];
+    this.mask = size - 1;
+    if (expiry == null) {
+      AtomicInteger count = new AtomicInteger();
+      this.ownExpiry = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread t = new Thread(r, "dod-timeouts-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+      this.expiry = ownExpiry;
+    } else {
+      this.ownExpiry = null;
+      this.expiry = expiry;
+    }
+  }
+
+  /** Starts turning the wheel on its own thread. */
+  public synchronized void start() {
+    if (clock != null)
+      return;
+    clock = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "dod-timers");
+      t.setDaemon(true);
+      return t;
+    });
+    long tickMicros = TimeUnit.NANOSECONDS.toMicros(tickNanos);
+    clock.scheduleAtFixedRate(this::advance, tickMicros, tickMicros, TimeUnit.MICROSECONDS);
+  }
+
+  /**
+   * Schedules a task to run once a delay has passed, unless cancelled first.
+   * Tasks run on the wheel's executor, possibly several at once.
+   *
+   * @param delayMillis How long to wait, in milliseconds.
+   * @param task        The task, given its own timeout.
+   * @return The timeout, for cancelling the task.
+   */
+  public Timeout schedule(long delayMillis, Consumer<Timeout> task) {
+    Timeout timeout = new Timeout(System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis), task);
+    pending.incrementAndGet();
+    scheduled.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Runs every tick that has fallen due.
+   */
+  void advance() {
+    long due = (System.nanoTime() - startNanos) / tickNanos;
+    while (tick <= due) {
+      tick();
+    }
+  }
+
+  /**
+   * Runs the next tick: places the timeouts scheduled and removes those
+   * cancelled since the last, then expires those due in the current bucket.
+   */
+  void tick() {
+    Timeout timeout;
+    while ((timeout = cancelled.poll()) != null) {
+      if (timeout.bucket != -1)
+        unlink(timeout);
+    }
+    while ((timeout = scheduled.poll()) != null) {
+      if (timeout.state.get() == Timeout.WAITING)
+        place(timeout);
+    }
+
+    List<Timeout> expired = new ArrayList<Timeout>();
+    int bucket = (int) (tick & mask);
+    Timeout next;
+    for (timeout = buckets[bucket]; timeout != null; timeout = next) {
+      next = timeout.next;
+      if (timeout.rounds > 0) {
+        timeout.rounds--;
+      } else {
+        unlink(timeout);
+        if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED))
+          expired.add(timeout);
+      }
+    }
+    tick++;
+
+    pending.addAndGet(-expired.size());
+    for (Timeout done : expired) {
+      try {
+        expiry.execute(() -> {
+          try {
+            done.task.accept(done);
+          } catch (RuntimeException e) {
+            System.err.println("Timeout failed: " + e.getMessage());
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        System.err.println("Timeout dropped: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Puts a timeout in the bucket of the tick it falls due on, or of the current
+   * tick if that has already passed.
+   *
+   * @param timeout The timeout.
+   */
+  private void place(Timeout timeout) {
+    // Rounded up, so that no timeout expires early.
+    long due = Math.max((timeout.deadline + tickNanos - 1) / tickNanos, tick);
+    timeout.rounds = (due - tick) / buckets.length;
+    timeout.bucket = (int) (due & mask);
+    timeout.next = buckets[timeout.bucket];
+    if (timeout.next != null)
+      timeout.next.previous = timeout;
+    buckets[timeout.bucket] = timeout;
+  }
+
+  /**
+   * Takes a timeout out of its bucket.
+   *
+   * @param timeout The timeout.
+   */
+  private void unlink(Timeout timeout) {
+    if (timeout.previous != null)
+      timeout.previous.next = timeout.next;
+    else
+      buckets[timeout.bucket] = timeout.next;
+    if (timeout.next != null)
+      timeout.next.previous = timeout.previous;
+    timeout.previous = timeout.next = null;
+    timeout.bucket = -1;
+  }
+
+  /**
+   * @return The number of timeouts that have been neither cancelled nor
+   *         expired.
+   */
+  public int getPendingCount() {
+    return pending.get();
+  }
+
+  /** Stops turning the wheel, leaving any timeouts to never expire. */
+  @Override
+  public synchronized void close() {
+    if (clock != null)
+      clock.shutdownNow();
+    if (ownExpiry != null)
+      ownExpiry.shutdown();
+  }
+
+  /** A task waiting in the wheel. */
+  public final class Timeout {
+    private static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+
+    /** When the task is due, in nanoseconds since the wheel started. */
+    private final long deadline;
+    /** The task. */
+    private final Consumer<Timeout> task;
+    /** Whether the task is waiting, cancelled or expired. */
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+    /** Turns of the wheel left before the task is due. */
+    private long rounds;
+    /** The bucket the timeout is in, or -1 if it is in none. */
+    private int bucket = -1;
+    /** The timeouts either side of this one in its bucket. */
+    private Timeout previous, next;
+
+    private Timeout(long deadline, Consumer<Timeout> task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+
+    /**
+     * Stops the task from running, if it has not already.
+     *
+     * @return Whether the task was stopped.
+     */
+    public boolean cancel() {
+      if (!state.compareAndSet(WAITING, CANCELLED))
+        return false;
+      pending.decrementAndGet();
+      cancelled.add(this);
+      return true;
+    }
+
+    /**
+     * @return Whether the task has been cancelled.
+     */
+    public boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+
+    /**
+     * @return Whether the task has run, or is running.
+     */
+    public boolean isExpired() {
+      return state.get() == EXPIRED;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.volatil.dod.session;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket, letting through bursts of up to its capacity while holding
+ * the long-run rate to its refill rate. Tokens are topped up lazily whenever
+ * one is asked for, so an idle bucket costs nothing. Not thread safe; each
+ * session's buckets are only used under that session's lock.
+ */
+class TokenBucket {
+  /** The most tokens the bucket holds. */
+  private final double capacity;
+  /** Tokens added per nanosecond. */
+  private final double refillPerNano;
+  /** Tokens in the bucket when last topped up. */
+  private double tokens;
+  /** When the bucket was last topped up, from {@link System#nanoTime()}. */
+  private long refilledAt;
+
+  /**
+   * Default constructor, for a full bucket.
+   *
+   * @param perSecond Tokens added per second.
+   * @param burst     The most tokens the bucket holds.
+   */
+  TokenBucket(double perSecond, int burst) {
+    this.capacity = burst;
+    this.refillPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+    this.tokens = burst;
+    this.refilledAt = System.nanoTime();
+  }
+
+  /**
+   * @param now The current time, from {@link System#nanoTime()}.
+   * @return Whether a token was taken, there being one left.
+   */
+  boolean tryTake(long now) {
+    tokens = Math.min(capacity, tokens + (now - refilledAt) * refillPerNano);
+    refilledAt = now;
+    if (tokens < 1)
+      return false;
+    tokens--;
+    return true;
+  }
+}